@@ -0,0 +1,413 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Assembles a JVM class file holding a public no-argument constructor and one
+ * more method, for code the processor generates at run time. The class
+ * extends a superclass whose no-argument constructor it calls, implements no
+ * interfaces and declares no fields.
+ *
+ * <p>
+ * The method's bytecode is emitted one instruction at a time. Every branch
+ * target and exception handler gets a full stack map frame, which always
+ * declares the same locals, so the generated method must store to every one of
+ * its locals before its first branch or handled instruction.
+ */
+final class ClassAssembler {
+  /**
+   * Start a new class.
+   *
+   * @param name       the internal name of the class.
+   * @param superName  the internal name of its superclass.
+   * @param methodName the name of the method.
+   * @param descriptor the descriptor of the method.
+   * @param locals     the verification type of each local of the method, as
+   *                   the internal name of a class or array type, or
+   *                   <tt>null</tt> for an <tt>int</tt>.
+   */
+  ClassAssembler(String name, String superName, String methodName, String descriptor, String[] locals) {
+    this.thisClass = classRef(name);
+    this.superClass = classRef(superName);
+    this.methodName = utf8(methodName);
+    this.descriptor = utf8(descriptor);
+
+    this.locals = new int[locals.length];
+    for (int i = 0; i < locals.length; i++)
+      this.locals[i] = (locals[i] == null) ? 0 : classRef(locals[i]);
+
+    throwable = classRef("java/lang/Throwable");
+  }
+
+  /**
+   * Return the index of a class in the constant pool, adding it if needed.
+   *
+   * @param name the internal name of the class.
+   * @return the index of the class.
+   */
+  int classRef(String name) {
+    return constant("C" + name, 7, utf8(name), -1);
+  }
+
+  /**
+   * Return the index of a method in the constant pool, adding it if needed.
+   *
+   * @param owner      the internal name of the class declaring the method.
+   * @param name       the name of the method.
+   * @param descriptor the descriptor of the method.
+   * @return the index of the method.
+   */
+  int methodRef(String owner, String name, String descriptor) {
+    int nameAndType = constant("N" + name + ":" + descriptor, 12, utf8(name), utf8(descriptor));
+    return constant("M" + owner + "." + name + ":" + descriptor, 10, classRef(owner), nameAndType);
+  }
+
+  /**
+   * Emit an instruction with no operands.
+   *
+   * @param opcode the opcode.
+   */
+  void emit(int opcode) {
+    code.write(opcode);
+  }
+
+  /**
+   * Emit an instruction that takes a local variable index.
+   *
+   * @param opcode the opcode.
+   * @param local  the index of the local.
+   */
+  void emitLocal(int opcode, int local) {
+    Lib.assertTrue(local >= 0 && local < locals.length);
+
+    code.write(opcode);
+    code.write(local);
+  }
+
+  /**
+   * Emit an instruction that takes a constant pool index, such as an
+   * invocation.
+   *
+   * @param opcode the opcode.
+   * @param index  the constant pool index.
+   */
+  void emitConstant(int opcode, int index) {
+    code.write(opcode);
+    code.write(index >> 8);
+    code.write(index);
+  }
+
+  /**
+   * Emit the shortest instruction that pushes an <tt>int</tt> constant.
+   *
+   * @param value the constant.
+   */
+  void pushInt(int value) {
+    if (value >= -1 && value <= 5) {
+      emit(ICONST_0 + value);
+    } else if (value == (byte) value) {
+      code.write(BIPUSH);
+      code.write(value);
+    } else if (value == (short) value) {
+      code.write(SIPUSH);
+      code.write(value >> 8);
+      code.write(value);
+    } else {
+      int index = constant("I" + value, 3, value, -1);
+      if (index < 0x100) {
+        code.write(LDC);
+        code.write(index);
+      } else {
+        emitConstant(LDC_W, index);
+      }
+    }
+  }
+
+  /**
+   * Emit an instruction that pushes a <tt>long</tt> constant.
+   *
+   * @param value the constant.
+   */
+  void pushLong(long value) {
+    int index = constant("J" + value, 5, (int) (value >> 32), (int) value);
+    emitConstant(LDC2_W, index);
+  }
+
+  /**
+   * Emit a conditional or unconditional branch whose target is not known yet.
+   *
+   * @param opcode the branch opcode.
+   * @return a handle to pass to <tt>setTarget()</tt>.
+   */
+  int emitBranch(int opcode) {
+    int at = position();
+    code.write(opcode);
+    code.write(0);
+    code.write(0);
+    return at;
+  }
+
+  /**
+   * Make the current position the target of a branch emitted earlier, and give
+   * it a stack map frame with an empty stack.
+   *
+   * @param branch the handle returned by <tt>emitBranch()</tt>.
+   */
+  void setTarget(int branch) {
+    int offset = position() - branch;
+    Lib.assertTrue(offset == (short) offset);
+
+    patches.add(new int[] { branch + 1, offset });
+    addFrame(false);
+  }
+
+  /**
+   * Return the offset the next instruction will be emitted at.
+   *
+   * @return the current offset in the method's code.
+   */
+  int position() {
+    return code.size();
+  }
+
+  /**
+   * Make the current position an exception handler, for any exception thrown
+   * by the instructions in a range. The handler is entered with the exception
+   * as the only item on the stack.
+   *
+   * @param start the offset of the first instruction covered.
+   * @param end   the offset just past the last instruction covered.
+   */
+  void addHandler(int start, int end) {
+    handlers.add(new int[] { start, end, position() });
+    addFrame(true);
+  }
+
+  /**
+   * Return the finished class file.
+   *
+   * @param maxStack the most items the method ever has on its stack.
+   * @return the class file.
+   */
+  byte[] assemble(int maxStack) {
+    byte[] body = code.toByteArray();
+    for (int[] patch : patches) {
+      body[patch[0]] = (byte) (patch[1] >> 8);
+      body[patch[0] + 1] = (byte) patch[1];
+    }
+
+    int superInit = methodRef(constantNames.get(superClass), "<init>", "()V");
+    int init = utf8("<init>");
+    int initDescriptor = utf8("()V");
+    int codeName = utf8("Code");
+    int stackMapName = utf8("StackMapTable");
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+
+    try {
+      out.writeInt(0xCAFEBABE);
+      out.writeShort(0);
+      out.writeShort(classVersion);
+
+      out.writeShort(numConstants);
+      out.write(pool.toByteArray());
+
+      out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+      out.writeShort(thisClass);
+      out.writeShort(superClass);
+      out.writeShort(0); // interfaces
+      out.writeShort(0); // fields
+
+      out.writeShort(2); // methods
+
+      // public <init>() { super(); }
+      out.writeShort(ACC_PUBLIC);
+      out.writeShort(init);
+      out.writeShort(initDescriptor);
+      out.writeShort(1);
+      out.writeShort(codeName);
+      out.writeInt(12 + 5);
+      out.writeShort(1);
+      out.writeShort(1);
+      out.writeInt(5);
+      out.write(ALOAD_0);
+      out.write(INVOKESPECIAL);
+      out.writeShort(superInit);
+      out.write(RETURN);
+      out.writeShort(0);
+      out.writeShort(0);
+
+      byte[] frames = stackMap();
+
+      out.writeShort(0);
+      out.writeShort(methodName);
+      out.writeShort(descriptor);
+      out.writeShort(1);
+      out.writeShort(codeName);
+      out.writeInt(12 + body.length + handlers.size() * 8 + (frames == null ? 0 : 6 + frames.length));
+      out.writeShort(maxStack);
+      out.writeShort(locals.length);
+      out.writeInt(body.length);
+      out.write(body);
+      out.writeShort(handlers.size());
+      for (int[] handler : handlers) {
+        out.writeShort(handler[0]);
+        out.writeShort(handler[1]);
+        out.writeShort(handler[2]);
+        out.writeShort(0); // any exception
+      }
+      if (frames == null) {
+        out.writeShort(0);
+      } else {
+        out.writeShort(1);
+        out.writeShort(stackMapName);
+        out.writeInt(frames.length);
+        out.write(frames);
+      }
+
+      out.writeShort(0); // attributes
+    } catch (IOException e) {
+      Lib.assertNotReached();
+    }
+
+    return bytes.toByteArray();
+  }
+
+  private void addFrame(boolean handler) {
+    int offset = position();
+
+    // a branch target can also be a handler only if nothing was emitted
+    // between them, which never happens
+    if (!frames.isEmpty())
+      Lib.assertTrue(frames.get(frames.size() - 1)[0] < offset);
+
+    frames.add(new int[] { offset, handler ? 1 : 0 });
+  }
+
+  private byte[] stackMap() throws IOException {
+    if (frames.isEmpty())
+      return null;
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+
+    out.writeShort(frames.size());
+
+    int last = -1;
+    for (int[] frame : frames) {
+      out.write(FULL_FRAME);
+      out.writeShort(frame[0] - last - 1);
+      last = frame[0];
+
+      out.writeShort(locals.length);
+      for (int local : locals)
+        writeType(out, local);
+
+      out.writeShort(frame[1]);
+      if (frame[1] != 0)
+        writeType(out, throwable);
+    }
+
+    return bytes.toByteArray();
+  }
+
+  private static void writeType(DataOutputStream out, int classIndex) throws IOException {
+    if (classIndex == 0) {
+      out.write(ITEM_INTEGER);
+    } else {
+      out.write(ITEM_OBJECT);
+      out.writeShort(classIndex);
+    }
+  }
+
+  private int utf8(String s) {
+    Integer index = constants.get("U" + s);
+    if (index != null)
+      return index;
+
+    try {
+      poolOut.write(1);
+      poolOut.writeUTF(s);
+    } catch (IOException e) {
+      Lib.assertNotReached();
+    }
+
+    constants.put("U" + s, numConstants);
+    return numConstants++;
+  }
+
+  /**
+   * Return the index of a constant other than a UTF-8 string, adding it if
+   * needed. A constant is written as its tag and one or two 16-bit indices, or
+   * as its tag and one or two 32-bit values if it is a number.
+   */
+  private int constant(String key, int tag, int first, int second) {
+    Integer index = constants.get(key);
+    if (index != null)
+      return index;
+
+    try {
+      poolOut.write(tag);
+      if (tag == 3 || tag == 5) {
+        poolOut.writeInt(first);
+        if (tag == 5)
+          poolOut.writeInt(second);
+      } else {
+        poolOut.writeShort(first);
+        if (second >= 0)
+          poolOut.writeShort(second);
+      }
+    } catch (IOException e) {
+      Lib.assertNotReached();
+    }
+
+    index = numConstants;
+    constants.put(key, index);
+    if (tag == 7)
+      constantNames.put(index, key.substring(1));
+
+    // a long takes up two entries
+    numConstants += (tag == 5) ? 2 : 1;
+    return index;
+  }
+
+  private ByteArrayOutputStream pool = new ByteArrayOutputStream();
+  private DataOutputStream poolOut = new DataOutputStream(pool);
+  /** The index of each constant in the pool, by a key naming its kind. */
+  private HashMap<String, Integer> constants = new HashMap<String, Integer>();
+  /** The internal name of each class in the pool, by index. */
+  private HashMap<Integer, String> constantNames = new HashMap<Integer, String>();
+  private int numConstants = 1;
+
+  private int thisClass, superClass, methodName, descriptor, throwable;
+  /** The class of each local, or 0 for an <tt>int</tt>. */
+  private int[] locals;
+
+  private ByteArrayOutputStream code = new ByteArrayOutputStream();
+  /** The offset and value of each branch offset to fill in. */
+  private ArrayList<int[]> patches = new ArrayList<int[]>();
+  /** The start, end and handler offsets of each exception handler. */
+  private ArrayList<int[]> handlers = new ArrayList<int[]>();
+  /** The offset of each frame, and whether it holds an exception. */
+  private ArrayList<int[]> frames = new ArrayList<int[]>();
+
+  /** Java 8 class files, the first that must carry stack map frames. */
+  private static final int classVersion = 52;
+
+  private static final int ACC_PUBLIC = 0x0001, ACC_FINAL = 0x0010, ACC_SUPER = 0x0020;
+  private static final int FULL_FRAME = 255, ITEM_INTEGER = 1, ITEM_OBJECT = 7;
+
+  static final int ICONST_0 = 0x03, BIPUSH = 0x10, SIPUSH = 0x11, LDC = 0x12, LDC_W = 0x13, LDC2_W = 0x14,
+      ILOAD = 0x15, ALOAD = 0x19, ALOAD_0 = 0x2a, IALOAD = 0x2e, ISTORE = 0x36, IASTORE = 0x4f, POP = 0x57,
+      DUP2 = 0x5c, IADD = 0x60, LSUB = 0x65, ISUB = 0x64, LMUL = 0x69, ISHL = 0x78, ISHR = 0x7a, LSHR = 0x7b,
+      LUSHR = 0x7d, IAND = 0x7e, LAND = 0x7f, IOR = 0x80, IXOR = 0x82, I2L = 0x85, L2I = 0x88, I2B = 0x91,
+      I2S = 0x93, IF_ICMPNE = 0xa0, IRETURN = 0xac, RETURN = 0xb1, INVOKEVIRTUAL = 0xb6, INVOKESPECIAL = 0xb7,
+      ATHROW = 0xbf;
+}
@@ -3,6 +3,7 @@
 package nachos.machine;
 
 import java.io.EOFException;
+import java.util.HashMap;
 
 /**
  * A COFF (common object file format) loader.
@@ -32,6 +33,9 @@ public class Coff {
    * not supply a file backed by a simulated cache (the primary purpose of this
    * restriction is to prevent sections from being loaded instantaneously while
    * handling page faults).
+   * <li>The headers of an executable on a file system are parsed once, and kept
+   * until the file is written or removed. Loading the same executable again
+   * only reads its sections.
    * </ol>
    *
    * @param file the file containing the executable.
@@ -45,6 +49,11 @@ public class Coff {
     if (coff != null) {
       this.entryPoint = coff.entryPoint;
       this.sections = coff.sections;
+    } else if ((coff = findParsed(file)) != null) {
+      this.entryPoint = coff.entryPoint;
+      this.sections = new CoffSection[coff.sections.length];
+      for (int s = 0; s < sections.length; s++)
+        sections[s] = new CoffSection(file, this, coff.sections[s]);
     } else {
       byte[] headers = new byte[headerLength + aoutHeaderLength];
 
@@ -86,9 +95,77 @@ public class Coff {
           throw e;
         }
       }
+
+      addParsed(file);
     }
   }
 
+  /**
+   * Return the parsed headers of an executable, if they are cached and the file
+   * has not changed length since.
+   *
+   * @param file the executable.
+   * @return a loader holding the parsed headers, or <tt>null</tt>.
+   */
+  private static Coff findParsed(OpenFile file) {
+    if (file.getFileSystem() == null)
+      return null;
+
+    Coff parsed = parsedHeaders.get(file.getName());
+    if (parsed == null || parsed.file.getFileSystem() != file.getFileSystem() || parsed.length != file.length())
+      return null;
+
+    return parsed;
+  }
+
+  /**
+   * Cache the headers this loader has just parsed.
+   *
+   * @param file the executable they were parsed from.
+   */
+  private void addParsed(OpenFile file) {
+    if (file.getFileSystem() == null)
+      return;
+
+    // close() drops the sections, so keep a loader of our own
+    Coff parsed = new Coff();
+    parsed.file = file;
+    parsed.entryPoint = entryPoint;
+    parsed.sections = sections.clone();
+    parsed.length = file.length();
+
+    parsedHeaders.put(file.getName(), parsed);
+  }
+
+  /**
+   * Forget the parsed headers of an executable, and count a new version of it.
+   * Called by a file system when a file is written, truncated or removed.
+   *
+   * @param fileSystem the file system.
+   * @param name       the name of the file.
+   */
+  public static void invalidateParsed(FileSystem fileSystem, String name) {
+    Coff parsed = parsedHeaders.get(name);
+    if (parsed != null && parsed.file.getFileSystem() == fileSystem)
+      parsedHeaders.remove(name);
+
+    Integer version = versions.get(name);
+    versions.put(name, (version == null) ? 1 : version + 1);
+  }
+
+  /**
+   * Return the version of a file, which changes whenever the file is written,
+   * truncated or removed, so that anything kept about an executable's contents
+   * can tell whether it is still current.
+   *
+   * @param name the name of the file.
+   * @return the version of the file.
+   */
+  public static int getVersion(String name) {
+    Integer version = versions.get(name);
+    return (version == null) ? 0 : version;
+  }
+
   /**
    * Return the number of sections in the executable.
    *
@@ -124,6 +201,15 @@ public class Coff {
     return entryPoint;
   }
 
+  /**
+   * Return the executable file this loader reads from.
+   *
+   * @return the executable file.
+   */
+  public OpenFile getFile() {
+    return file;
+  }
+
   /**
    * Close the executable file and release any resources allocated by this loader.
    */
@@ -134,6 +220,13 @@ public class Coff {
   }
 
   private OpenFile file;
+  /** The length of the file, for cached headers. */
+  private int length;
+
+  /** The cached headers of each executable loaded, by file name. */
+  private static HashMap<String, Coff> parsedHeaders = new HashMap<String, Coff>();
+  /** The number of times each file has changed, by file name. */
+  private static HashMap<String, Integer> versions = new HashMap<String, Integer>();
 
   /** The virtual address of the first instruction of the program. */
   protected int entryPoint;
@@ -105,6 +105,28 @@ public class CoffSection {
     firstVPN = vaddr / Processor.pageSize;
   }
 
+  /**
+   * Load a COFF section whose header has already been parsed, without reading
+   * it again.
+   *
+   * @param file   the file containing the executable.
+   * @param coff   the COFF object to which this section belongs.
+   * @param parsed the section as loaded from an earlier open of the file.
+   */
+  CoffSection(OpenFile file, Coff coff, CoffSection parsed) {
+    this.file = file;
+    this.coff = coff;
+
+    name = parsed.name;
+    executable = parsed.executable;
+    readOnly = parsed.readOnly;
+    initialized = parsed.initialized;
+    numPages = parsed.numPages;
+    firstVPN = parsed.firstVPN;
+    size = parsed.size;
+    contentOffset = parsed.contentOffset;
+  }
+
   /**
    * Return the COFF object used to load this executable instance.
    *
@@ -178,23 +200,75 @@ public class CoffSection {
     byte[] memory = Machine.processor().getMemory();
     int paddr = ppn * pageSize;
     int faddr = contentOffset + spn * pageSize;
-    int initlen;
+    int initlen = getInitializedLength(spn);
+
+    if (initlen > 0)
+      Lib.strictReadFile(file, faddr, memory, paddr, initlen);
+
+    Arrays.fill(memory, paddr + initlen, paddr + pageSize, (byte) 0);
+  }
+
+  /**
+   * Load consecutive pages from this segment into physical memory, reading all
+   * of them from the executable with a single request.
+   *
+   * @param spn   the page number within this segment of the first page.
+   * @param ppns  the physical pages to load into, one per page.
+   * @param count the number of pages to load.
+   */
+  public void loadPages(int spn, int[] ppns, int count) {
+    Lib.assertTrue(file != null);
+
+    Lib.assertTrue(spn >= 0 && count >= 0 && spn + count <= numPages);
+
+    int pageSize = Processor.pageSize;
+    byte[] memory = Machine.processor().getMemory();
+    int[] offsets = new int[count];
+    int[] lengths = new int[count];
+    int numWindows = 0, total = 0;
+
+    // only the last page of a section can be partly initialized, so the
+    // initialized parts are contiguous in the file
+    for (int i = 0; i < count; i++) {
+      Lib.assertTrue(ppns[i] >= 0 && ppns[i] < Machine.processor().getNumPhysPages());
+
+      int initlen = getInitializedLength(spn + i);
+      if (initlen > 0) {
+        offsets[numWindows] = ppns[i] * pageSize;
+        lengths[numWindows] = initlen;
+        numWindows++;
+        total += initlen;
+      }
+
+      Arrays.fill(memory, ppns[i] * pageSize + initlen, (ppns[i] + 1) * pageSize, (byte) 0);
+    }
+
+    if (numWindows > 0) {
+      int faddr = contentOffset + spn * pageSize;
+      Lib.assertTrue(file.read(faddr, memory, offsets, lengths, numWindows) == total);
+    }
+  }
+
+  /**
+   * Return the number of bytes at the start of a page of this segment that are
+   * read from the executable. The rest of the page is zero-filled.
+   *
+   * @param spn the page number within this segment.
+   * @return the number of initialized bytes in the page.
+   */
+  private int getInitializedLength(int spn) {
+    int pageSize = Processor.pageSize;
 
     if (!initialized)
-      initlen = 0;
+      return 0;
     else if (spn == numPages - 1)
       /**
        * initlen = size % pageSize; Bug identified by Steven Schlansker 3/20/08 Bug
        * fix by Michael Rauser
        */
-      initlen = (size == pageSize) ? pageSize : (size % pageSize);
+      return (size == pageSize) ? pageSize : (size % pageSize);
     else
-      initlen = pageSize;
-
-    if (initlen > 0)
-      Lib.strictReadFile(file, faddr, memory, paddr, initlen);
-
-    Arrays.fill(memory, paddr + initlen, paddr + pageSize, (byte) 0);
+      return pageSize;
   }
 
   /** The COFF object to which this section belongs. */
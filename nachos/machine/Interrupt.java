@@ -149,6 +149,38 @@ public final class Interrupt {
     enabled = true;
   }
 
+  private void tick(boolean inKernelMode, int count) {
+    Lib.assertTrue(count >= 0);
+
+    // keep the per-tick trace intact when it is being watched
+    if (Lib.test(dbgInt)) {
+      for (int i = 0; i < count; i++)
+        tick(inKernelMode);
+      return;
+    }
+
+    Stats stats = privilege.stats;
+
+    if (inKernelMode) {
+      stats.kernelTicks += (long) Stats.KernelTick * count;
+      stats.totalTicks += (long) Stats.KernelTick * count;
+    } else {
+      stats.userTicks += (long) Stats.UserTick * count;
+      stats.totalTicks += (long) Stats.UserTick * count;
+    }
+
+    enabled = false;
+    checkIfDue();
+    enabled = true;
+  }
+
+  private long ticksUntilDue() {
+    if (pending.isEmpty())
+      return Long.MAX_VALUE;
+
+    return pending.first().time - privilege.stats.totalTicks;
+  }
+
   private void checkIfDue() {
     long time = privilege.stats.totalTicks;
 
@@ -242,5 +274,13 @@ public final class Interrupt {
     public void tick(boolean inKernelMode) {
       Interrupt.this.tick(inKernelMode);
     }
+
+    public void tick(boolean inKernelMode, int count) {
+      Interrupt.this.tick(inKernelMode, count);
+    }
+
+    public long ticksUntilDue() {
+      return Interrupt.this.ticksUntilDue();
+    }
   }
 }
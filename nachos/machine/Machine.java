@@ -289,6 +289,105 @@ public final class Machine {
     return timer;
   }
 
+  /**
+   * Record the name of the kernel's page replacement policy, so that the
+   * paging statistics are printed when the machine halts.
+   *
+   * @param name the name of the policy.
+   */
+  public static void setReplacementPolicy(String name) {
+    stats.replacementPolicy = name;
+  }
+
+  /**
+   * Count a page fault that the kernel handled on a TLB miss. The hardware
+   * only sees page faults when there is no TLB.
+   */
+  public static void countPageFault() {
+    stats.numPageFaults++;
+  }
+
+  /**
+   * Count pages the kernel has evicted from physical memory.
+   *
+   * @param count the number of pages evicted.
+   */
+  public static void countEvictions(int count) {
+    Lib.assertTrue(count >= 0);
+    stats.numEvictions += count;
+  }
+
+  /**
+   * Count pages the kernel has read from swap.
+   *
+   * @param count the number of pages read.
+   */
+  public static void countSwapReads(int count) {
+    Lib.assertTrue(count >= 0);
+    stats.numSwapReads += count;
+  }
+
+  /**
+   * Count pages the kernel has written to swap.
+   *
+   * @param count the number of pages written.
+   */
+  public static void countSwapWrites(int count) {
+    Lib.assertTrue(count >= 0);
+    stats.numSwapWrites += count;
+  }
+
+  /**
+   * Count pages the kernel has read ahead of a page fault.
+   *
+   * @param count the number of pages read ahead.
+   */
+  public static void countPagesPrefetched(int count) {
+    Lib.assertTrue(count >= 0);
+    stats.numPagesPrefetched += count;
+  }
+
+  /**
+   * Count a page read ahead that was later used.
+   */
+  public static void countPrefetchHit() {
+    stats.numPrefetchHits++;
+  }
+
+  /**
+   * Count a shared page that a process has had to copy to write.
+   */
+  public static void countCopyOnWrite() {
+    stats.numCopyOnWrites++;
+  }
+
+  /**
+   * Count a file block found in the kernel's buffer cache.
+   */
+  public static void countCacheHit() {
+    stats.numCacheHits++;
+  }
+
+  /**
+   * Count file blocks the kernel's buffer cache has had to read in.
+   *
+   * @param count the number of blocks read.
+   */
+  public static void countCacheMisses(int count) {
+    Lib.assertTrue(count >= 0);
+    stats.numCacheMisses += count;
+  }
+
+  /**
+   * Count dirty blocks the kernel's buffer cache has written back.
+   *
+   * @param count the number of blocks written back.
+   */
+  public static void countCacheWriteBacks(int count) {
+    Lib.assertTrue(count >= 0);
+    stats.numCacheWriteBacks += count;
+  }
+
   /**
    * Return the hardware elevator bank.
    *
@@ -76,6 +76,70 @@ public class OpenFile {
     return -1;
   }
 
+  /**
+   * Read this file starting at the specified position into a list of windows
+   * of the same buffer, filling each window before moving on to the next, and
+   * return the total number of bytes successfully read. Stops at the first
+   * window that could not be filled. If no bytes were read because of a fatal
+   * error, returns -1.
+   *
+   * <p>
+   * This lets a caller read straight into scattered parts of a large buffer,
+   * such as the physical pages of a user buffer in main memory, with a single
+   * call.
+   *
+   * @param pos     the offset in the file at which to start reading.
+   * @param buf     the buffer to store the bytes in.
+   * @param offsets the offset in the buffer of each window.
+   * @param lengths the length of each window.
+   * @param count   the number of windows.
+   * @return the actual number of bytes successfully read, or -1 on failure.
+   */
+  public int read(int pos, byte[] buf, int[] offsets, int[] lengths, int count) {
+    int amount = 0;
+
+    for (int i = 0; i < count; i++) {
+      int read = read(pos + amount, buf, offsets[i], lengths[i]);
+      if (read < 0)
+        return (amount > 0) ? amount : -1;
+
+      amount += read;
+      if (read < lengths[i])
+        break;
+    }
+
+    return amount;
+  }
+
+  /**
+   * Write this file starting at the specified position from a list of windows
+   * of the same buffer, in order, and return the total number of bytes
+   * successfully written. Stops at the first window that could not be written
+   * completely. If no bytes were written because of a fatal error, returns -1.
+   *
+   * @param pos     the offset in the file at which to start writing.
+   * @param buf     the buffer to get the bytes from.
+   * @param offsets the offset in the buffer of each window.
+   * @param lengths the length of each window.
+   * @param count   the number of windows.
+   * @return the actual number of bytes successfully written, or -1 on failure.
+   */
+  public int write(int pos, byte[] buf, int[] offsets, int[] lengths, int count) {
+    int amount = 0;
+
+    for (int i = 0; i < count; i++) {
+      int written = write(pos + amount, buf, offsets[i], lengths[i]);
+      if (written < 0)
+        return (amount > 0) ? amount : -1;
+
+      amount += written;
+      if (written < lengths[i])
+        break;
+    }
+
+    return amount;
+  }
+
   /**
    * Get the length of this file.
    *
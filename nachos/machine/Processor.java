@@ -4,6 +4,13 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.security.PrivilegedAction;
+import java.util.Arrays;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -37,6 +44,8 @@ public final class Processor {
 
     usingTLB = (clsVMKernel != null && clsVMKernel.isAssignableFrom(clsKernel));
 
+    tracing = Lib.test(dbgProcessor);
+
     this.numPhysPages = numPhysPages;
 
     for (int i = 0; i < numUserRegisters; i++)
@@ -44,7 +53,24 @@ public final class Processor {
 
     mainMemory = new byte[pageSize * numPhysPages];
 
+    if (Config.getBoolean("Processor.predecode", true))
+      decodedPages = new Decoded[numPhysPages][];
+
+    if (Config.getBoolean("Processor.blockTranslation", false))
+      blockPages = new Block[numPhysPages][];
+
+    hotBlockThreshold = Config.getInteger("Processor.hotBlockThreshold", 50);
+    compileThreshold = Config.getInteger("Processor.compileThreshold", 1000);
+
+    for (int i = 0; i < exceptionNames.length; i++)
+      exceptions[i] = new MipsException(i);
+
     if (usingTLB) {
+      tlbSize = Config.getInteger("Processor.tlbSize", tlbSize);
+      tlbAssociativity = Config.getInteger("Processor.tlbAssociativity", tlbSize);
+      tlbRandomHint = Config.getBoolean("Processor.tlbRandomHint", false);
+      Lib.assertTrue(tlbSize > 0 && tlbAssociativity > 0 && tlbSize % tlbAssociativity == 0);
+
       translations = new TranslationEntry[tlbSize];
       for (int i = 0; i < tlbSize; i++)
         translations[i] = new TranslationEntry();
@@ -89,15 +115,658 @@ public final class Processor {
 
     Instruction inst = new Instruction();
 
+    // the kernel has just loaded a program, so nothing translated so far can
+    // be trusted without looking at memory again
+    codeEpoch++;
+
+    if (blockPages != null && !Lib.test(dbgProcessor) && !Lib.test(dbgDisassemble) && !Lib.test(dbgFullDisassemble))
+      runBlocks(inst);
+
+    while (true)
+      step(inst);
+  }
+
+  /**
+   * Execute a single instruction, and advance the simulated time by one tick.
+   *
+   * @param inst the instruction state to use.
+   */
+  private void step(Instruction inst) {
+    try {
+      inst.run();
+    } catch (MipsException e) {
+      e.handle();
+    }
+
+    privilege.interrupt.tick(false);
+  }
+
+  /**
+   * Execute instructions a basic block at a time. Never returns.
+   *
+   * <p>
+   * A block is only run as a unit when no interrupt can come due before its
+   * last instruction retires, which lets its ticks be accounted in bulk without
+   * changing when interrupts are delivered. Otherwise the processor falls back
+   * to single instructions until the interrupt has been taken.
+   *
+   * @param inst the instruction state to use when falling back.
+   */
+  private void runBlocks(Instruction inst) {
+    Block last = null;
+
     while (true) {
+      Block block;
+      try {
+        block = findBlock(last, translate(registers[regPC], 4, false, true));
+      } catch (MipsException e) {
+        e.handle();
+        privilege.interrupt.tick(false);
+        last = null;
+        continue;
+      }
+
+      // a block assumes it is entered with sequential control flow, which is
+      // not the case for the delay slot of a branch taken by a single step
+      if (block == null || registers[regNextPC] != registers[regPC] + 4
+          || block.ops.length > privilege.interrupt.ticksUntilDue()) {
+        step(inst);
+        last = null;
+        continue;
+      }
+
+      int retired;
       try {
-        inst.run();
+        if (block.hotOps == null && ++block.runs >= hotBlockThreshold)
+          promoteBlock(block);
+        else if (block.hotOps != null && !block.compileTried && compileThreshold > 0
+            && ++block.runs >= compileThreshold)
+          compileBlock(block);
+
+        if (block.hotOps != null)
+          retired = runHotBlock(block, privilege.interrupt.ticksUntilDue());
+        else
+          retired = runBlock(block);
       } catch (MipsException e) {
         e.handle();
+        privilege.interrupt.tick(false);
+        last = null;
+        continue;
+      }
+
+      privilege.interrupt.tick(false, retired);
+      last = block;
+    }
+  }
+
+  /**
+   * Run the micro-ops of a block. If one faults, the ticks of those retired
+   * before it are accounted before the exception is thrown.
+   *
+   * @param block the block to run.
+   * @return the number of instructions retired.
+   */
+  private int runBlock(Block block) throws MipsException {
+    int epoch = codeEpoch;
+    int retired = 0;
+
+    try {
+      // stop early if a store lands on a page holding translated code
+      while (retired < block.ops.length && codeEpoch == epoch) {
+        block.ops[retired].run();
+        retired++;
+      }
+    } catch (MipsException e) {
+      if (retired > 0)
+        privilege.interrupt.tick(false, retired);
+      throw e;
+    }
+
+    return retired;
+  }
+
+  /**
+   * Run a hot block. If an instruction faults, the ticks of those retired
+   * before it are accounted before the exception is thrown.
+   *
+   * <p>
+   * The PC is kept in a local while the straight-line part of the block runs,
+   * and is only written back to the PC registers before an instruction that
+   * needs it, before the branch, when the block exits early, and when an
+   * instruction faults, so the exception handler sees exactly the state the
+   * single-step path would have left. A block that branches back to itself is
+   * run again in place for as long as no interrupt can come due.
+   *
+   * <p>
+   * If the block has been compiled, its compiled prefix is run instead of the
+   * first micro-ops, unless the delayed load left by the previous block targets
+   * a register the prefix reads before the load would complete.
+   *
+   * @param block  the block to run.
+   * @param budget the number of instructions that can retire before the next
+   *               interrupt is due.
+   * @return the number of instructions retired.
+   */
+  private int runHotBlock(Block block, long budget) throws MipsException {
+    int epoch = codeEpoch;
+    int base = registers[regPC];
+    int retired = 0;
+
+    try {
+      do {
+        int i = 0;
+
+        CompiledCode compiled = block.compiled;
+        if (compiled != null && (compiled.entryReads & (1L << loadTarget)) == 0) {
+          // the prefix resolves the loads it issues itself, so finish the one
+          // in progress, which its first instruction does not read
+          finishLoad();
+          try {
+            i = compiled.run(registers, epoch);
+          } catch (MipsException e) {
+            retired += compiled.retired;
+            throw e;
+          }
+          retired += i;
+
+          if (codeEpoch != epoch)
+            return retired;
+        }
+
+        try {
+          for (; i < block.straightLength; i++) {
+            if (block.hotOps[i] != null) {
+              block.hotOps[i].run();
+            } else {
+              registers[regPC] = base + i * 4;
+              registers[regNextPC] = base + i * 4 + 4;
+              block.ops[i].run();
+            }
+            retired++;
+
+            if (codeEpoch != epoch) {
+              registers[regPC] = base + (i + 1) * 4;
+              registers[regNextPC] = base + (i + 1) * 4 + 4;
+              return retired;
+            }
+          }
+        } catch (MipsException e) {
+          registers[regPC] = base + i * 4;
+          registers[regNextPC] = base + i * 4 + 4;
+          throw e;
+        }
+
+        registers[regPC] = base + i * 4;
+        registers[regNextPC] = base + i * 4 + 4;
+
+        for (; i < block.ops.length; i++) {
+          block.ops[i].run();
+          retired++;
+
+          if (codeEpoch != epoch)
+            return retired;
+        }
+      } while (registers[regPC] == base && registers[regNextPC] == base + 4
+          && retired + block.ops.length <= budget);
+    } catch (MipsException e) {
+      if (retired > 0)
+        privilege.interrupt.tick(false, retired);
+      throw e;
+    }
+
+    return retired;
+  }
+
+  /**
+   * Retranslate a block that has run often enough to be worth it, so that its
+   * straight-line part no longer maintains the PC registers.
+   *
+   * @param block the block to promote.
+   */
+  private void promoteBlock(Block block) {
+    MicroOp[] hotOps = new MicroOp[block.ops.length];
+
+    for (int i = 0; i < block.straightLength; i++)
+      hotOps[i] = translateInstruction(new Decoded(block.words[i]), false);
+
+    block.hotOps = hotOps;
+  }
+
+  /**
+   * Compile the straight-line prefix of a hot block to JVM bytecode, up to the
+   * first instruction that takes the general path. The block is only compiled
+   * once, whether or not that succeeds. If this JVM cannot define hidden
+   * classes, compiling is turned off for good.
+   *
+   * @param block the block to compile.
+   */
+  private void compileBlock(Block block) {
+    block.compileTried = true;
+
+    int length = 0;
+    while (length < block.straightLength && block.hotOps[length] != null)
+      length++;
+    if (length < minCompiledLength)
+      return;
+
+    Decoded[] code = new Decoded[length];
+    for (int i = 0; i < length; i++)
+      code[i] = new Decoded(block.words[i]);
+
+    BlockCompiler compiler = new BlockCompiler(code);
+    CompiledCode compiled = defineCompiled(compiler.assemble());
+    if (compiled == null) {
+      compileThreshold = 0;
+      return;
+    }
+
+    compiled.processor = this;
+    compiled.entryReads = compiler.entryReads;
+    block.compiled = compiled;
+  }
+
+  /**
+   * Define a class generated by <tt>BlockCompiler</tt> as a hidden class, and
+   * return a new instance of it. Hidden classes need Java 15 or later, but the
+   * machine must still build and run on older releases, so they are reached
+   * through a method handle looked up at run time. Reflection cannot be used:
+   * after a few calls it generates classes in a class loader of its own, which
+   * the security manager forbids.
+   *
+   * @param bytes the class file.
+   * @return the compiled code, or <tt>null</tt> if hidden classes are not
+   *         available.
+   */
+  private CompiledCode defineCompiled(final byte[] bytes) {
+    Object result = privilege.doPrivileged(new PrivilegedAction() {
+      public Object run() {
+        try {
+          if (defineHiddenClass == null) {
+            Class<?> option = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+            noClassOptions = Array.newInstance(option, 0);
+            defineHiddenClass = MethodHandles.publicLookup().findVirtual(MethodHandles.Lookup.class,
+                "defineHiddenClass", MethodType.methodType(MethodHandles.Lookup.class, byte[].class, boolean.class,
+                    noClassOptions.getClass())).asFixedArity();
+          }
+
+          MethodHandles.Lookup lookup = (MethodHandles.Lookup) defineHiddenClass.invoke(MethodHandles.lookup(),
+              bytes, true, noClassOptions);
+          return lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class)).invoke();
+        } catch (ClassNotFoundException e) {
+          return null;
+        } catch (NoSuchMethodException e) {
+          return null;
+        } catch (Throwable e) {
+          System.err.println("Warning: cannot compile blocks: " + e);
+          return null;
+        }
+      }
+    });
+
+    return (CompiledCode) result;
+  }
+
+  /**
+   * Find the translated block starting at the specified physical address,
+   * translating it if necessary. The successors of the previous block are
+   * checked first, so that a block that is usually followed by the same
+   * block does not need to look it up.
+   *
+   * @param last  the block that was just run, or <tt>null</tt>.
+   * @param paddr the physical address of the current PC.
+   * @return the block, or <tt>null</tt> if no block can start here.
+   */
+  private Block findBlock(Block last, int paddr) {
+    Block block = null;
+
+    if (last != null) {
+      if (last.successors[0] != null && last.successors[0].paddr == paddr)
+        block = last.successors[0];
+      else if (last.successors[1] != null && last.successors[1].paddr == paddr)
+        block = last.successors[1];
+    }
+
+    if (block == null) {
+      Block[] page = blockPages[paddr / pageSize];
+      if (page == null) {
+        page = new Block[pageSize / 4];
+        blockPages[paddr / pageSize] = page;
+      }
+
+      block = page[(paddr % pageSize) / 4];
+      if (block == null || !block.validate()) {
+        block = translateBlock(paddr);
+        page[(paddr % pageSize) / 4] = block;
+      }
+
+      if (last != null && block != null) {
+        last.successors[last.nextSuccessor] = block;
+        last.nextSuccessor ^= 1;
+      }
+    } else if (!block.validate()) {
+      // stale link; let the page table pick up a fresh translation
+      return findBlock(null, paddr);
+    }
+
+    return block;
+  }
+
+  /**
+   * Translate the basic block starting at the specified physical address. The
+   * block runs up to and including the first branch and its delay slot, and
+   * never crosses a page boundary.
+   *
+   * @param paddr the physical address of the first instruction.
+   * @return the new block, or <tt>null</tt> if the first instruction is a branch
+   *         whose delay slot is on the next page.
+   */
+  private Block translateBlock(int paddr) {
+    int pageEnd = (paddr / pageSize + 1) * pageSize;
+    Decoded[] code = new Decoded[maxBlockLength];
+    int length = 0;
+    boolean branched = false;
+
+    for (int a = paddr; a < pageEnd && length < maxBlockLength - 1; a += 4) {
+      Decoded d = new Decoded(Lib.bytesToInt(mainMemory, a));
+
+      if (Lib.test(Mips.BRANCH, d.flags)) {
+        // keep the branch only if its delay slot comes with it
+        if (a + 4 < pageEnd) {
+          code[length++] = d;
+          code[length++] = new Decoded(Lib.bytesToInt(mainMemory, a + 4));
+          branched = true;
+        }
+        break;
+      }
+
+      code[length++] = d;
+    }
+
+    if (length == 0)
+      return null;
+
+    Block block = new Block(paddr, length);
+
+    for (int i = 0; i < length; i++) {
+      block.words[i] = code[i].value;
+      block.ops[i] = translateInstruction(code[i], true);
+    }
+
+    // the branch and its delay slot keep maintaining the PC when hot
+    block.straightLength = branched ? length - 2 : length;
+
+    block.epoch = codeEpoch;
+    return block;
+  }
+
+  /**
+   * Translate a single instruction into a micro-op. The common integer,
+   * load/store and branch instructions get a specialized micro-op with their
+   * operands bound in; everything else runs through the general instruction
+   * path.
+   *
+   * <p>
+   * A micro-op translated without <i>advance</i> leaves the PC alone, so that a
+   * hot block can keep the PC in a local and only write it back when it exits.
+   * Branches always advance the PC, and the general path needs the PC to be up
+   * to date, so neither has such a form.
+   *
+   * @param d       the decoded instruction.
+   * @param advance <tt>true</tt> if the micro-op should advance the PC.
+   * @return a micro-op with the same effect as the instruction, or
+   *         <tt>null</tt> if the instruction must take the general path and
+   *         <i>advance</i> is <tt>false</tt>.
+   */
+  private MicroOp translateInstruction(final Decoded d, final boolean advance) {
+    final int rs = d.rs, rt = d.rt, dstReg = d.dstReg, sh = d.sh;
+    final boolean unsigned = Lib.test(Mips.UNSIGNED, d.flags);
+    final int imm = unsigned ? d.imm & 0xFFFF : d.imm;
+
+    switch (d.operation) {
+    case Mips.ADD:
+      if (Lib.test(Mips.OVERFLOW, d.flags))
+        break;
+
+      if (Lib.test(Mips.SRC2IMM, d.flags)) {
+        return new MicroOp() {
+          void run() {
+            int value = registers[rs] + imm;
+            finishLoad();
+            if (dstReg != 0)
+              registers[dstReg] = value;
+            if (advance)
+              advancePC(registers[regNextPC] + 4);
+          }
+        };
+      }
+
+      return new MicroOp() {
+        void run() {
+          int value = registers[rs] + registers[rt];
+          finishLoad();
+          if (dstReg != 0)
+            registers[dstReg] = value;
+          if (advance)
+            advancePC(registers[regNextPC] + 4);
+        }
+      };
+
+    case Mips.SUB:
+      if (Lib.test(Mips.OVERFLOW, d.flags))
+        break;
+
+      return new MicroOp() {
+        void run() {
+          int value = registers[rs] - registers[rt];
+          finishLoad();
+          if (dstReg != 0)
+            registers[dstReg] = value;
+          if (advance)
+            advancePC(registers[regNextPC] + 4);
+        }
+      };
+
+    case Mips.AND:
+    case Mips.OR:
+    case Mips.XOR:
+    case Mips.NOR:
+      final int logic = d.operation;
+      final boolean useImm = Lib.test(Mips.SRC2IMM, d.flags);
+
+      return new MicroOp() {
+        void run() {
+          int src1 = registers[rs];
+          int src2 = useImm ? imm : registers[rt];
+          int value;
+          if (logic == Mips.AND)
+            value = src1 & src2;
+          else if (logic == Mips.OR)
+            value = src1 | src2;
+          else if (logic == Mips.XOR)
+            value = src1 ^ src2;
+          else
+            value = ~(src1 | src2);
+          finishLoad();
+          if (dstReg != 0)
+            registers[dstReg] = value;
+          if (advance)
+            advancePC(registers[regNextPC] + 4);
+        }
+      };
+
+    case Mips.LUI:
+      return new MicroOp() {
+        void run() {
+          finishLoad();
+          if (dstReg != 0)
+            registers[dstReg] = imm << 16;
+          if (advance)
+            advancePC(registers[regNextPC] + 4);
+        }
+      };
+
+    case Mips.SLT:
+      final boolean sltImm = Lib.test(Mips.SRC2IMM, d.flags);
+
+      return new MicroOp() {
+        void run() {
+          long src1 = registers[rs];
+          long src2 = sltImm ? imm : registers[rt];
+          if (unsigned) {
+            src1 &= 0xFFFFFFFFL;
+            src2 &= 0xFFFFFFFFL;
+          }
+          finishLoad();
+          if (dstReg != 0)
+            registers[dstReg] = (src1 < src2) ? 1 : 0;
+          if (advance)
+            advancePC(registers[regNextPC] + 4);
+        }
+      };
+
+    case Mips.SLL:
+    case Mips.SRL:
+    case Mips.SRA:
+      final int shift = d.operation;
+      final boolean fixed = Lib.test(Mips.SRC1SH, d.flags);
+
+      return new MicroOp() {
+        void run() {
+          int amount = (fixed ? sh : registers[rs]) & 0x1F;
+          int src2 = registers[rt];
+          int value;
+          if (shift == Mips.SLL)
+            value = src2 << amount;
+          else if (shift == Mips.SRL)
+            // same as the general path, which shifts the sign-extended value
+            value = (int) ((long) src2 >>> amount);
+          else
+            value = src2 >> amount;
+          finishLoad();
+          if (dstReg != 0)
+            registers[dstReg] = value;
+          if (advance)
+            advancePC(registers[regNextPC] + 4);
+        }
+      };
+
+    case Mips.MFLO:
+    case Mips.MFHI:
+      final int source = (d.operation == Mips.MFLO) ? regLo : regHi;
+
+      return new MicroOp() {
+        void run() {
+          int value = registers[source];
+          finishLoad();
+          if (dstReg != 0)
+            registers[dstReg] = value;
+          if (advance)
+            advancePC(registers[regNextPC] + 4);
+        }
+      };
+
+    case Mips.MULT:
+      return new MicroOp() {
+        void run() {
+          long src1 = registers[rs];
+          long src2 = registers[rt];
+          if (unsigned) {
+            src1 &= 0xFFFFFFFFL;
+            src2 &= 0xFFFFFFFFL;
+          }
+          long product = src1 * src2;
+          registers[regLo] = (int) product;
+          registers[regHi] = (int) (product >> 32);
+          finishLoad();
+          if (advance)
+            advancePC(registers[regNextPC] + 4);
+        }
+      };
+
+    case Mips.LOAD:
+      final int loadSize = d.size;
+
+      return new MicroOp() {
+        void run() throws MipsException {
+          int value = readMem(registers[rs] + imm, loadSize);
+          if (!unsigned)
+            value = Lib.extend(value, 0, loadSize * 8);
+          delayedLoad(dstReg, value, 0xFFFFFFFF);
+          if (advance)
+            advancePC(registers[regNextPC] + 4);
+        }
+      };
+
+    case Mips.STORE:
+      final int storeSize = d.size;
+
+      return new MicroOp() {
+        void run() throws MipsException {
+          writeMem(registers[rs] + imm, storeSize, registers[rt]);
+          finishLoad();
+          if (advance)
+            advancePC(registers[regNextPC] + 4);
+        }
+      };
+
+    case Mips.BEQ:
+    case Mips.BNE:
+      if (Lib.test(Mips.LINK, d.flags))
+        break;
+
+      final boolean equal = (d.operation == Mips.BEQ);
+
+      return new MicroOp() {
+        void run() {
+          boolean taken = ((registers[rs] == registers[rt]) == equal);
+          int nextPC = taken ? registers[regNextPC] + (imm << 2) : registers[regNextPC] + 4;
+          finishLoad();
+          advancePC(nextPC);
+        }
+      };
+
+    case Mips.JUMP:
+      if (d.format == Mips.JFMT) {
+        final int target = d.target << 2;
+        final boolean link = Lib.test(Mips.LINK, d.flags);
+
+        return new MicroOp() {
+          void run() {
+            int returnAddress = registers[regNextPC] + 4;
+            int nextPC = (registers[regNextPC] & 0xF0000000) | target;
+            finishLoad();
+            if (link)
+              registers[regRA] = returnAddress;
+            advancePC(nextPC);
+          }
+        };
       }
 
-      privilege.interrupt.tick(false);
+      if (Lib.test(Mips.LINK, d.flags))
+        break;
+
+      return new MicroOp() {
+        void run() {
+          int nextPC = registers[rs];
+          finishLoad();
+          advancePC(nextPC);
+        }
+      };
     }
+
+    if (!advance)
+      return null;
+
+    // anything else goes through the general path
+    return new MicroOp() {
+      void run() throws MipsException {
+        blockInstruction.value = d.value;
+        blockInstruction.decoded = d;
+        blockInstruction.decode();
+        blockInstruction.execute();
+        blockInstruction.writeBack();
+      }
+    };
   }
 
   /**
@@ -182,6 +851,58 @@ public final class Processor {
     return tlbSize;
   }
 
+  /**
+   * Return the number of entries in each set of this processor's TLB. A virtual
+   * page can only be mapped by the entries of the set it falls in, which are
+   * the entries numbered from <tt>getTLBSet(vpn) * getTLBAssociativity()</tt>
+   * up to but not including <tt>(getTLBSet(vpn) + 1) *
+   * getTLBAssociativity()</tt>. If this equals <tt>getTLBSize()</tt>, the TLB is
+   * fully associative.
+   *
+   * @return the number of entries in each set of the TLB.
+   */
+  public int getTLBAssociativity() {
+    Lib.assertTrue(usingTLB);
+
+    return tlbAssociativity;
+  }
+
+  /**
+   * Return the TLB set that the specified virtual page falls in.
+   *
+   * @param vpn the virtual page number.
+   * @return the set the page falls in.
+   */
+  public int getTLBSet(int vpn) {
+    Lib.assertTrue(usingTLB);
+
+    return vpn % (tlbSize / tlbAssociativity);
+  }
+
+  /**
+   * Suggest which TLB entry to fill with a translation for the specified
+   * virtual page. This is an invalid entry in the page's set if there is one.
+   * Otherwise, if <tt>Processor.tlbRandomHint</tt> is set, it is a random entry
+   * in the set, as picked by the random register of a MIPS TLB, and if not the
+   * kernel must choose a victim itself.
+   *
+   * @param vpn the virtual page number to be mapped.
+   * @return the TLB entry to fill, or -1 if the kernel must choose.
+   */
+  public int getTLBReplacement(int vpn) {
+    int base = getTLBSet(vpn) * tlbAssociativity;
+
+    for (int i = base; i < base + tlbAssociativity; i++) {
+      if (!translations[i].valid)
+        return i;
+    }
+
+    if (tlbRandomHint)
+      return base + Lib.random(tlbAssociativity);
+    else
+      return -1;
+  }
+
   /**
    * Returns the specified TLB entry.
    *
@@ -199,8 +920,9 @@ public final class Processor {
    * Fill the specified TLB entry.
    *
    * <p>
-   * The TLB is fully associative, so the location of an entry within the TLB does
-   * not affect anything.
+   * A valid entry must be written into the set its virtual page falls in. If the
+   * TLB is fully associative, which it is by default, there is only one set,
+   * so the location of an entry within the TLB does not affect anything.
    *
    * @param number the index into the TLB.
    * @param entry  the new contents of the TLB entry.
@@ -208,8 +930,52 @@ public final class Processor {
   public void writeTLBEntry(int number, TranslationEntry entry) {
     Lib.assertTrue(usingTLB);
     Lib.assertTrue(number >= 0 && number < tlbSize);
+    Lib.assertTrue(!entry.valid || number / tlbAssociativity == getTLBSet(entry.vpn));
 
     translations[number] = new TranslationEntry(entry);
+
+    // the replaced entry may be memoized
+    flushTLBHints();
+  }
+
+  /**
+   * Forget every memoized TLB lookup. Must be called whenever an entry in the
+   * TLB is replaced.
+   */
+  private void flushTLBHints() {
+    lastFetchEntry = null;
+    lastDataEntry = null;
+    Arrays.fill(tlbHints, 0);
+  }
+
+  /**
+   * Find the valid TLB entry for the specified virtual page, trying the entry
+   * last seen for that page before searching the page's set. Like the search, the
+   * hint only ever yields the lowest-numbered matching entry, because hints are
+   * flushed whenever an entry is replaced.
+   *
+   * @param vpn the virtual page number to look up.
+   * @return the matching entry, or <tt>null</tt> if there is none.
+   */
+  private TranslationEntry lookupTLB(int vpn) {
+    int hint = vpn & (tlbHints.length - 1);
+
+    if (tlbHints[hint] != 0) {
+      TranslationEntry entry = translations[tlbHints[hint] - 1];
+      if (entry.valid && entry.vpn == vpn)
+        return entry;
+    }
+
+    int base = (vpn % (tlbSize / tlbAssociativity)) * tlbAssociativity;
+
+    for (int i = base; i < base + tlbAssociativity; i++) {
+      if (translations[i].valid && translations[i].vpn == vpn) {
+        tlbHints[hint] = i + 1;
+        return translations[i];
+      }
+    }
+
+    return null;
   }
 
   /**
@@ -285,13 +1051,30 @@ public final class Processor {
    * @exception MipsException if a translation error occurred.
    */
   private int translate(int vaddr, int size, boolean writing) throws MipsException {
-    if (Lib.test(dbgProcessor))
+    return translate(vaddr, size, writing, false);
+  }
+
+  /**
+   * Translate a virtual address into a physical address, as above, noting
+   * whether the reference is an instruction fetch so that instruction and data
+   * references can each skip the TLB search while they stay on one page.
+   *
+   * @param vaddr    the virtual address to translate.
+   * @param size     the size of the memory reference (must be 1, 2, or 4).
+   * @param writing  <tt>true</tt> if the memory reference is a write.
+   * @param fetching <tt>true</tt> if the memory reference is an instruction
+   *                 fetch.
+   * @return the physical address.
+   * @exception MipsException if a translation error occurred.
+   */
+  private int translate(int vaddr, int size, boolean writing, boolean fetching) throws MipsException {
+    if (tracing)
       System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr) + (writing ? ", write" : ", read..."));
 
     // check alignment
     if ((vaddr & (size - 1)) != 0) {
       Lib.debug(dbgProcessor, "\t\talignment error");
-      throw new MipsException(exceptionAddressError, vaddr);
+      throw fault(exceptionAddressError, vaddr);
     }
 
     // calculate virtual page number and offset from the virtual address
@@ -305,37 +1088,47 @@ public final class Processor {
       if (translations == null || vpn >= translations.length || translations[vpn] == null || !translations[vpn].valid) {
         privilege.stats.numPageFaults++;
         Lib.debug(dbgProcessor, "\t\tpage fault");
-        throw new MipsException(exceptionPageFault, vaddr);
+        throw fault(exceptionPageFault, vaddr);
       }
 
       entry = translations[vpn];
     }
     // else, look through all TLB entries for matching vpn
     else {
-      for (int i = 0; i < tlbSize; i++) {
-        if (translations[i].valid && translations[i].vpn == vpn) {
-          entry = translations[i];
-          break;
+      entry = fetching ? lastFetchEntry : lastDataEntry;
+
+      if (entry == null || !entry.valid || entry.vpn != vpn) {
+        entry = lookupTLB(vpn);
+        if (entry == null) {
+          privilege.stats.numTLBMisses++;
+          if (fetching)
+            privilege.stats.numTLBFetchMisses++;
+          else if (writing)
+            privilege.stats.numTLBWriteMisses++;
+          else
+            privilege.stats.numTLBReadMisses++;
+          Lib.debug(dbgProcessor, "\t\tTLB miss");
+          throw fault(exceptionTLBMiss, vaddr);
         }
-      }
-      if (entry == null) {
-        privilege.stats.numTLBMisses++;
-        Lib.debug(dbgProcessor, "\t\tTLB miss");
-        throw new MipsException(exceptionTLBMiss, vaddr);
+
+        if (fetching)
+          lastFetchEntry = entry;
+        else
+          lastDataEntry = entry;
       }
     }
 
     // check if trying to write a read-only page
     if (entry.readOnly && writing) {
       Lib.debug(dbgProcessor, "\t\tread-only exception");
-      throw new MipsException(exceptionReadOnly, vaddr);
+      throw fault(exceptionReadOnly, vaddr);
     }
 
     // check if physical page number is out of range
     int ppn = entry.ppn;
     if (ppn < 0 || ppn >= numPhysPages) {
       Lib.debug(dbgProcessor, "\t\tbad ppn");
-      throw new MipsException(exceptionBusError, vaddr);
+      throw fault(exceptionBusError, vaddr);
     }
 
     // set used and dirty bits as appropriate
@@ -345,7 +1138,7 @@ public final class Processor {
 
     int paddr = (ppn * pageSize) + offset;
 
-    if (Lib.test(dbgProcessor))
+    if (tracing)
       System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));
     return paddr;
   }
@@ -360,12 +1153,26 @@ public final class Processor {
    * @exception MipsException if a translation error occurred.
    */
   private int readMem(int vaddr, int size) throws MipsException {
+    return readMem(vaddr, size, false);
+  }
+
+  /**
+   * Read virtual memory, as above, noting whether the read is an instruction
+   * fetch.
+   *
+   * @param vaddr    the virtual address to read from.
+   * @param size     the number of bytes to read (1, 2, or 4).
+   * @param fetching <tt>true</tt> if the read is an instruction fetch.
+   * @return the value read.
+   * @exception MipsException if a translation error occurred.
+   */
+  private int readMem(int vaddr, int size, boolean fetching) throws MipsException {
     if (Lib.test(dbgProcessor))
       System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr) + ", size=" + size);
 
     Lib.assertTrue(size == 1 || size == 2 || size == 4);
 
-    int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false), size);
+    int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false, fetching), size);
 
     if (Lib.test(dbgProcessor))
       System.out.println("\t\tvalue read=0x" + Lib.toHexString(value, size * 2));
@@ -389,7 +1196,19 @@ public final class Processor {
 
     Lib.assertTrue(size == 1 || size == 2 || size == 4);
 
-    Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size, value);
+    int paddr = translate(vaddr, size, true);
+
+    // a store to a page drops whatever was predecoded from it
+    if (decodedPages != null)
+      decodedPages[paddr / pageSize] = null;
+
+    // and makes every translated block check its code against memory again
+    if (blockPages != null && blockPages[paddr / pageSize] != null) {
+      blockPages[paddr / pageSize] = null;
+      codeEpoch++;
+    }
+
+    Lib.bytesFromInt(mainMemory, paddr, size, value);
   }
 
   /**
@@ -513,11 +1332,30 @@ public final class Processor {
   private boolean usingTLB;
   /** Number of TLB entries. */
   private int tlbSize = 4;
+  /** Number of TLB entries in each set. */
+  private int tlbAssociativity;
+  /** <tt>true</tt> if replacement hints may pick a random victim. */
+  private boolean tlbRandomHint;
   /**
    * Either an associative or direct-mapped set of translation entries, depending
    * on whether there is a TLB.
    */
   private TranslationEntry[] translations;
+  /** The TLB entry used by the last instruction fetch, or <tt>null</tt>. */
+  private TranslationEntry lastFetchEntry = null;
+  /** The TLB entry used by the last data reference, or <tt>null</tt>. */
+  private TranslationEntry lastDataEntry = null;
+  /**
+   * One plus the index of the TLB entry last seen for each virtual page,
+   * hashed by virtual page number, or 0 if none. The length must be a power of
+   * two.
+   */
+  private int[] tlbHints = new int[64];
+  /**
+   * <tt>true</tt> if address translation is being traced. Debug flags are set
+   * before the machine is built, so this only needs checking once.
+   */
+  private boolean tracing;
 
   /** Size of a page, in bytes. */
   public static final int pageSize = 0x400;
@@ -527,6 +1365,46 @@ public final class Processor {
   private int numPhysPages;
   /** Main memory for user programs. */
   private byte[] mainMemory;
+  /**
+   * Predecoded instructions, indexed by physical page number and then by word
+   * within the page, or <tt>null</tt> if the predecode cache is disabled.
+   */
+  private Decoded[][] decodedPages = null;
+  /**
+   * Translated blocks, indexed by physical page number and then by the word
+   * within the page they start at, or <tt>null</tt> if block translation is
+   * disabled.
+   */
+  private Block[][] blockPages = null;
+  /**
+   * Advanced whenever memory may have been written behind the back of the
+   * translated blocks. A block checked in an older epoch must be compared
+   * against memory before it is run again.
+   */
+  private int codeEpoch = 0;
+  /** The number of times a block must be entered before it is promoted. */
+  private int hotBlockThreshold;
+  /**
+   * The number of times a block must be entered before it is compiled, or 0 if
+   * blocks are never compiled.
+   */
+  private int compileThreshold;
+  /**
+   * <tt>MethodHandles.Lookup.defineHiddenClass()</tt>, once it has been looked
+   * up.
+   */
+  private static MethodHandle defineHiddenClass = null;
+  /** An empty array of <tt>MethodHandles.Lookup.ClassOption</tt>. */
+  private static Object noClassOptions;
+  /** The fewest instructions worth compiling. */
+  private static final int minCompiledLength = 2;
+  /** Instruction state used by micro-ops that take the general path. */
+  private Instruction blockInstruction = new Instruction();
+  /** The maximum number of instructions in a translated block. */
+  private static final int maxBlockLength = 64;
+
+  /** The preallocated exceptions, indexed by cause. */
+  private MipsException[] exceptions = new MipsException[exceptionNames.length];
 
   /** The kernel exception handler, called on every user exception. */
   private Runnable exceptionHandler = null;
@@ -538,21 +1416,56 @@ public final class Processor {
   private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
     public void flushPipe() {
       finishLoad();
+
+      // an interrupt handler may write memory
+      codeEpoch++;
     }
   }
 
-  private class MipsException extends Exception {
-    public MipsException(int cause) {
-      Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
+  /**
+   * Return the preallocated exception for the specified cause, ready to be
+   * thrown.
+   *
+   * @param cause the cause of the exception.
+   * @return the exception to throw.
+   */
+  private MipsException fault(int cause) {
+    Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
+
+    MipsException e = exceptions[cause];
+    e.hasBadVAddr = false;
+    return e;
+  }
 
+  /**
+   * Return the preallocated exception for the specified cause, ready to be
+   * thrown, recording the virtual address that caused it.
+   *
+   * @param cause    the cause of the exception.
+   * @param badVAddr the virtual address that caused the exception.
+   * @return the exception to throw.
+   */
+  private MipsException fault(int cause, int badVAddr) {
+    MipsException e = fault(cause);
+    e.hasBadVAddr = true;
+    e.badVAddr = badVAddr;
+    return e;
+  }
+
+  /**
+   * A user exception. There is one instance per cause, reused every time that
+   * cause is raised, and none of them record a stack trace. This is safe
+   * because only one exception is outstanding at a time: <tt>handle()</tt>
+   * reads everything it needs before calling the kernel, which may switch to
+   * another thread that raises the same exception again.
+   */
+  private class MipsException extends Exception {
+    private MipsException(int cause) {
       this.cause = cause;
     }
 
-    public MipsException(int cause, int badVAddr) {
-      this(cause);
-
-      hasBadVAddr = true;
-      this.badVAddr = badVAddr;
+    public Throwable fillInStackTrace() {
+      return this;
     }
 
     public void handle() {
@@ -566,6 +1479,9 @@ public final class Processor {
 
       finishLoad();
 
+      // the kernel may write memory before we return to user mode
+      codeEpoch++;
+
       Lib.assertTrue(exceptionHandler != null);
 
       // autograder might not want kernel to know about this exception
@@ -576,7 +1492,8 @@ public final class Processor {
     }
 
     private boolean hasBadVAddr = false;
-    private int cause, badVAddr;
+    private final int cause;
+    private int badVAddr;
   }
 
   private class Instruction {
@@ -596,63 +1513,58 @@ public final class Processor {
       if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) || Lib.test(dbgFullDisassemble))
         System.out.print("PC=0x" + Lib.toHexString(registers[regPC]) + "\t");
 
-      value = readMem(registers[regPC], 4);
-    }
+      // the predecode cache is bypassed while tracing, so that every fetch
+      // still shows up as a memory read
+      if (decodedPages == null || Lib.test(dbgProcessor)) {
+        value = readMem(registers[regPC], 4, true);
+        decoded = null;
+        return;
+      }
 
-    private void decode() {
-      op = Lib.extract(value, 26, 6);
-      rs = Lib.extract(value, 21, 5);
-      rt = Lib.extract(value, 16, 5);
-      rd = Lib.extract(value, 11, 5);
-      sh = Lib.extract(value, 6, 5);
-      func = Lib.extract(value, 0, 6);
-      target = Lib.extract(value, 0, 26);
-      imm = Lib.extend(value, 0, 16);
+      int paddr = translate(registers[regPC], 4, false, true);
+      value = Lib.bytesToInt(mainMemory, paddr);
 
-      Mips info;
-      switch (op) {
-      case 0:
-        info = Mips.specialtable[func];
-        break;
-      case 1:
-        info = Mips.regimmtable[rt];
-        break;
-      default:
-        info = Mips.optable[op];
-        break;
+      Decoded[] page = decodedPages[paddr / pageSize];
+      if (page == null) {
+        page = new Decoded[pageSize / 4];
+        decodedPages[paddr / pageSize] = page;
       }
 
-      operation = info.operation;
-      name = info.name;
-      format = info.format;
-      flags = info.flags;
+      // the record is only trusted if the word it was decoded from is still
+      // there; the kernel writes to physical memory behind our back
+      decoded = page[(paddr % pageSize) / 4];
+      if (decoded == null || decoded.value != value) {
+        decoded = new Decoded(value);
+        page[(paddr % pageSize) / 4] = decoded;
+      }
+    }
+
+    private void decode() {
+      if (decoded == null)
+        decoded = new Decoded(value);
+
+      op = decoded.op;
+      rs = decoded.rs;
+      rt = decoded.rt;
+      rd = decoded.rd;
+      sh = decoded.sh;
+      func = decoded.func;
+      target = decoded.target;
+      imm = decoded.imm;
+
+      operation = decoded.operation;
+      name = decoded.name;
+      format = decoded.format;
+      flags = decoded.flags;
+      size = decoded.size;
+      dstReg = decoded.dstReg;
 
       mask = 0xFFFFFFFF;
       branch = true;
 
-      // get memory access size
-      if (test(Mips.SIZEB))
-        size = 1;
-      else if (test(Mips.SIZEH))
-        size = 2;
-      else if (test(Mips.SIZEW))
-        size = 4;
-      else
-        size = 0;
-
       // get nextPC
       nextPC = registers[regNextPC] + 4;
 
-      // get dstReg
-      if (test(Mips.DSTRA))
-        dstReg = regRA;
-      else if (format == Mips.IFMT)
-        dstReg = rt;
-      else if (format == Mips.RFMT)
-        dstReg = rd;
-      else
-        dstReg = -1;
-
       // get jtarget
       if (format == Mips.RFMT)
         jtarget = registers[rs];
@@ -825,7 +1737,7 @@ public final class Processor {
           if (registers[regLo] * src2 + registers[regHi] != src1)
             throw new ArithmeticException();
         } catch (ArithmeticException e) {
-          throw new MipsException(exceptionOverflow);
+          throw fault(exceptionOverflow);
         }
         break;
 
@@ -895,7 +1807,7 @@ public final class Processor {
         break;
 
       case Mips.SYSCALL:
-        throw new MipsException(exceptionSyscall);
+        throw fault(exceptionSyscall);
 
       case Mips.LOAD:
         value = readMem(addr, size);
@@ -965,7 +1877,7 @@ public final class Processor {
         System.err.println("Warning: encountered unimplemented inst");
 
       case Mips.INVALID:
-        throw new MipsException(exceptionIllegalInstruction);
+        throw fault(exceptionIllegalInstruction);
 
       default:
         Lib.assertNotReached();
@@ -975,7 +1887,7 @@ public final class Processor {
     private void writeBack() throws MipsException {
       // if instruction is signed, but carry bit !+ sign bit, throw
       if (test(Mips.OVERFLOW) && Lib.test(dst, 31) != Lib.test(dst, 32))
-        throw new MipsException(exceptionOverflow);
+        throw fault(exceptionOverflow);
 
       if (test(Mips.DELAYEDLOAD))
         delayedLoad(dstReg, (int) dst, mask);
@@ -1016,6 +1928,576 @@ public final class Processor {
     long src1, src2, dst;
     int mask;
     boolean branch;
+
+    /** The predecoded form of the instruction being executed. */
+    Decoded decoded;
+  }
+
+  /**
+   * The parts of an instruction that depend only on the instruction word, and
+   * not on register contents. These are what the predecode cache keeps around
+   * between executions of the same physical address.
+   */
+  private static class Decoded {
+    Decoded(int value) {
+      this.value = value;
+
+      op = Lib.extract(value, 26, 6);
+      rs = Lib.extract(value, 21, 5);
+      rt = Lib.extract(value, 16, 5);
+      rd = Lib.extract(value, 11, 5);
+      sh = Lib.extract(value, 6, 5);
+      func = Lib.extract(value, 0, 6);
+      target = Lib.extract(value, 0, 26);
+      imm = Lib.extend(value, 0, 16);
+
+      Mips info;
+      switch (op) {
+      case 0:
+        info = Mips.specialtable[func];
+        break;
+      case 1:
+        info = Mips.regimmtable[rt];
+        break;
+      default:
+        info = Mips.optable[op];
+        break;
+      }
+
+      operation = info.operation;
+      name = info.name;
+      format = info.format;
+      flags = info.flags;
+
+      // get memory access size
+      if (Lib.test(Mips.SIZEB, flags))
+        size = 1;
+      else if (Lib.test(Mips.SIZEH, flags))
+        size = 2;
+      else if (Lib.test(Mips.SIZEW, flags))
+        size = 4;
+      else
+        size = 0;
+
+      // get dstReg
+      if (Lib.test(Mips.DSTRA, flags))
+        dstReg = regRA;
+      else if (format == Mips.IFMT)
+        dstReg = rt;
+      else if (format == Mips.RFMT)
+        dstReg = rd;
+      else
+        dstReg = -1;
+    }
+
+    final int value, op, rs, rt, rd, sh, func, target, imm;
+    final int operation, format, flags;
+    final String name;
+    final int size, dstReg;
+  }
+
+  /**
+   * A single translated instruction. Its operands are bound when it is
+   * translated, so running it involves no decoding at all.
+   */
+  private abstract class MicroOp {
+    abstract void run() throws MipsException;
+  }
+
+  /**
+   * A straight-line run of translated instructions, ending with a branch and
+   * its delay slot.
+   */
+  private class Block {
+    Block(int paddr, int length) {
+      this.paddr = paddr;
+      words = new int[length];
+      ops = new MicroOp[length];
+    }
+
+    /**
+     * Check that this block still matches the code in memory. Only needed once
+     * per code epoch.
+     *
+     * @return <tt>true</tt> if this block can still be run.
+     */
+    boolean validate() {
+      if (epoch == codeEpoch)
+        return true;
+
+      for (int i = 0; i < words.length; i++) {
+        if (Lib.bytesToInt(mainMemory, paddr + i * 4) != words[i])
+          return false;
+      }
+
+      epoch = codeEpoch;
+      return true;
+    }
+
+    /** The physical address of the first instruction. */
+    final int paddr;
+    /** The instruction words this block was translated from. */
+    final int[] words;
+    /** The translated instructions. */
+    final MicroOp[] ops;
+    /** The code epoch in which this block was last checked against memory. */
+    int epoch;
+    /** The number of leading instructions that are not a branch or delay slot. */
+    int straightLength;
+    /** The number of times this block has been entered. */
+    int runs = 0;
+    /**
+     * The micro-ops used once this block is hot, or <tt>null</tt> if it has not
+     * been promoted. An entry is <tt>null</tt> if that instruction takes the
+     * general path.
+     */
+    MicroOp[] hotOps = null;
+    /** The compiled prefix of this block, or <tt>null</tt> if none. */
+    CompiledCode compiled = null;
+    /** <tt>true</tt> once this block has been considered for compiling. */
+    boolean compileTried = false;
+    /** The blocks that most recently followed this one. */
+    Block[] successors = new Block[2];
+    /** The successor slot to replace next. */
+    int nextSuccessor = 0;
+  }
+
+  /**
+   * The superclass of the classes <tt>BlockCompiler</tt> generates. Compiled
+   * code only reaches the processor through these methods.
+   */
+  private abstract static class CompiledCode {
+    CompiledCode() {
+    }
+
+    /**
+     * Run the compiled instructions. On return, and when an instruction faults,
+     * the registers, PC registers and delayed load are as single-stepping the
+     * same instructions would have left them. Stops early if a store lands on a
+     * page holding translated code.
+     *
+     * @param registers the registers.
+     * @param epoch     the code epoch the block was checked in.
+     * @return the number of instructions retired.
+     */
+    abstract int run(int[] registers, int epoch) throws MipsException;
+
+    int readMem(int vaddr, int size) throws MipsException {
+      return processor.readMem(vaddr, size);
+    }
+
+    void writeMem(int vaddr, int size, int value) throws MipsException {
+      processor.writeMem(vaddr, size, value);
+    }
+
+    int codeEpoch() {
+      return processor.codeEpoch;
+    }
+
+    /**
+     * Called by compiled code as it returns or rethrows a fault, after it has
+     * written back the registers it keeps in locals.
+     *
+     * @param count         the number of instructions retired.
+     * @param pendingTarget the target of the delayed load in progress, or 0.
+     * @param pendingValue  the value it will load.
+     */
+    void leave(int count, int pendingTarget, int pendingValue) {
+      retired = count;
+
+      processor.registers[regPC] += count * 4;
+      processor.registers[regNextPC] = processor.registers[regPC] + 4;
+
+      processor.loadTarget = pendingTarget;
+      processor.loadValue = pendingValue;
+      processor.loadMask = 0xFFFFFFFF;
+    }
+
+    Processor processor;
+    /** The registers the first instruction reads, one bit each. */
+    long entryReads;
+    /** The number of instructions retired, as last passed to <tt>leave()</tt>. */
+    int retired;
+  }
+
+  /**
+   * Generates a subclass of <tt>CompiledCode</tt> for a run of instructions
+   * that all have a specialized micro-op. The registers the instructions use
+   * are kept in locals, loaded on entry and written back on every way out.
+   * Delayed loads are resolved as the code is generated, since it is always
+   * known which instruction a load completes in. Each load and store has its own
+   * exception handler, which knows where the instruction is and which load was
+   * in progress, and so can leave the state the exception handler expects.
+   */
+  private static class BlockCompiler {
+    BlockCompiler(Decoded[] code) {
+      this.code = code;
+
+      long used = 0;
+      for (Decoded d : code)
+        used |= reads(d) | writes(d);
+
+      String[] locals = new String[firstRegisterLocal + Long.bitCount(used)];
+      locals[0] = className;
+      locals[1] = "[I";
+
+      for (int r = 1; r < numUserRegisters; r++) {
+        if ((used & (1L << r)) != 0) {
+          registerLocals[r] = firstRegisterLocal + numUsed;
+          usedRegisters[numUsed++] = r;
+        }
+        if ((writesAny(r)))
+          writtenRegisters[numWritten++] = r;
+      }
+
+      entryReads = reads(code[0]);
+
+      asm = new ClassAssembler(className, superName, "run", "([II)I", locals);
+    }
+
+    /**
+     * Generate the class.
+     *
+     * @return the class file.
+     */
+    byte[] assemble() {
+      int readMem = asm.methodRef(superName, "readMem", "(II)I");
+      int writeMem = asm.methodRef(superName, "writeMem", "(III)V");
+      int codeEpoch = asm.methodRef(superName, "codeEpoch", "()I");
+      leave = asm.methodRef(superName, "leave", "(III)V");
+
+      // every local is stored to before anything can branch or fault
+      for (int i = 0; i < numUsed; i++) {
+        asm.emitLocal(ClassAssembler.ALOAD, 1);
+        asm.pushInt(usedRegisters[i]);
+        asm.emit(ClassAssembler.IALOAD);
+        asm.emitLocal(ClassAssembler.ISTORE, registerLocals[usedRegisters[i]]);
+      }
+      asm.pushInt(0);
+      asm.emitLocal(ClassAssembler.ISTORE, pendingValue);
+      asm.pushInt(0);
+      asm.emitLocal(ClassAssembler.ISTORE, loaded);
+
+      int[] faultStart = new int[code.length], faultEnd = new int[code.length];
+      int[] faultPending = new int[code.length];
+      int[] storeExits = new int[code.length];
+      int numFaults = 0, numStoreExits = 0;
+      int[] faultIndex = new int[code.length], storeExitIndex = new int[code.length];
+
+      int pending = 0;
+      for (int i = 0; i < code.length; i++) {
+        Decoded d = code[i];
+        boolean unsigned = Lib.test(Mips.UNSIGNED, d.flags);
+        int imm = unsigned ? d.imm & 0xFFFF : d.imm;
+        int newPending = 0;
+
+        switch (d.operation) {
+        case Mips.ADD:
+        case Mips.SUB:
+        case Mips.AND:
+        case Mips.OR:
+        case Mips.XOR:
+        case Mips.NOR:
+          pushRegister(d.rs);
+          if (Lib.test(Mips.SRC2IMM, d.flags))
+            asm.pushInt(imm);
+          else
+            pushRegister(d.rt);
+
+          if (d.operation == Mips.ADD) {
+            asm.emit(ClassAssembler.IADD);
+          } else if (d.operation == Mips.SUB) {
+            asm.emit(ClassAssembler.ISUB);
+          } else if (d.operation == Mips.AND) {
+            asm.emit(ClassAssembler.IAND);
+          } else if (d.operation == Mips.XOR) {
+            asm.emit(ClassAssembler.IXOR);
+          } else {
+            asm.emit(ClassAssembler.IOR);
+            if (d.operation == Mips.NOR) {
+              asm.pushInt(-1);
+              asm.emit(ClassAssembler.IXOR);
+            }
+          }
+          finishInstruction(pending, d.dstReg);
+          break;
+
+        case Mips.LUI:
+          asm.pushInt(imm << 16);
+          finishInstruction(pending, d.dstReg);
+          break;
+
+        case Mips.SLT:
+          // the sign of the difference of the two operands, widened so it
+          // cannot overflow
+          pushWidened(d.rs, unsigned);
+          if (Lib.test(Mips.SRC2IMM, d.flags)) {
+            asm.pushInt(imm);
+            asm.emit(ClassAssembler.I2L);
+            if (unsigned) {
+              asm.pushLong(0xFFFFFFFFL);
+              asm.emit(ClassAssembler.LAND);
+            }
+          } else {
+            pushWidened(d.rt, unsigned);
+          }
+          asm.emit(ClassAssembler.LSUB);
+          asm.pushInt(63);
+          asm.emit(ClassAssembler.LUSHR);
+          asm.emit(ClassAssembler.L2I);
+          finishInstruction(pending, d.dstReg);
+          break;
+
+        case Mips.SLL:
+        case Mips.SRL:
+        case Mips.SRA:
+          pushRegister(d.rt);
+          if (Lib.test(Mips.SRC1SH, d.flags))
+            asm.pushInt(d.sh);
+          else
+            pushRegister(d.rs);
+
+          // srl shifts the sign-extended value on every other path too, so it
+          // is an arithmetic shift here as well
+          asm.emit(d.operation == Mips.SLL ? ClassAssembler.ISHL : ClassAssembler.ISHR);
+          finishInstruction(pending, d.dstReg);
+          break;
+
+        case Mips.MFLO:
+        case Mips.MFHI:
+          pushRegister(d.operation == Mips.MFLO ? regLo : regHi);
+          finishInstruction(pending, d.dstReg);
+          break;
+
+        case Mips.MULT:
+          pushWidened(d.rs, unsigned);
+          pushWidened(d.rt, unsigned);
+          asm.emit(ClassAssembler.LMUL);
+          asm.emit(ClassAssembler.DUP2);
+          asm.emit(ClassAssembler.L2I);
+          asm.emitLocal(ClassAssembler.ISTORE, registerLocals[regLo]);
+          asm.pushInt(32);
+          asm.emit(ClassAssembler.LSHR);
+          asm.emit(ClassAssembler.L2I);
+          asm.emitLocal(ClassAssembler.ISTORE, registerLocals[regHi]);
+          completeLoad(pending);
+          break;
+
+        case Mips.LOAD:
+          asm.emitLocal(ClassAssembler.ALOAD, 0);
+          pushRegister(d.rs);
+          asm.pushInt(imm);
+          asm.emit(ClassAssembler.IADD);
+          asm.pushInt(d.size);
+          faultIndex[numFaults] = i;
+          faultPending[numFaults] = pending;
+          faultStart[numFaults] = asm.position();
+          asm.emitConstant(ClassAssembler.INVOKEVIRTUAL, readMem);
+          faultEnd[numFaults++] = asm.position();
+
+          if (!unsigned && d.size == 1)
+            asm.emit(ClassAssembler.I2B);
+          else if (!unsigned && d.size == 2)
+            asm.emit(ClassAssembler.I2S);
+
+          // the load in progress completes before this one is issued
+          asm.emitLocal(ClassAssembler.ISTORE, loaded);
+          completeLoad(pending);
+          if (d.dstReg != 0) {
+            asm.emitLocal(ClassAssembler.ILOAD, loaded);
+            asm.emitLocal(ClassAssembler.ISTORE, pendingValue);
+            newPending = d.dstReg;
+          }
+          break;
+
+        case Mips.STORE:
+          asm.emitLocal(ClassAssembler.ALOAD, 0);
+          pushRegister(d.rs);
+          asm.pushInt(imm);
+          asm.emit(ClassAssembler.IADD);
+          asm.pushInt(d.size);
+          pushRegister(d.rt);
+          faultIndex[numFaults] = i;
+          faultPending[numFaults] = pending;
+          faultStart[numFaults] = asm.position();
+          asm.emitConstant(ClassAssembler.INVOKEVIRTUAL, writeMem);
+          faultEnd[numFaults++] = asm.position();
+          completeLoad(pending);
+
+          // stop if the store landed on translated code
+          asm.emitLocal(ClassAssembler.ALOAD, 0);
+          asm.emitConstant(ClassAssembler.INVOKEVIRTUAL, codeEpoch);
+          asm.emitLocal(ClassAssembler.ILOAD, 2);
+          storeExitIndex[numStoreExits] = i;
+          storeExits[numStoreExits++] = asm.emitBranch(ClassAssembler.IF_ICMPNE);
+          break;
+
+        default:
+          Lib.assertNotReached();
+        }
+
+        pending = newPending;
+      }
+
+      emitLeave(code.length, pending);
+
+      for (int i = 0; i < numStoreExits; i++) {
+        asm.setTarget(storeExits[i]);
+        emitLeave(storeExitIndex[i] + 1, 0);
+      }
+
+      for (int i = 0; i < numFaults; i++) {
+        asm.addHandler(faultStart[i], faultEnd[i]);
+        writeBackRegisters();
+        asm.emitLocal(ClassAssembler.ALOAD, 0);
+        asm.pushInt(faultIndex[i]);
+        asm.pushInt(faultPending[i]);
+        asm.emitLocal(ClassAssembler.ILOAD, pendingValue);
+        asm.emitConstant(ClassAssembler.INVOKEVIRTUAL, leave);
+        asm.emit(ClassAssembler.ATHROW);
+      }
+
+      return asm.assemble(maxStack);
+    }
+
+    /**
+     * Finish an instruction whose result is on the stack: complete the load in
+     * progress, then write the result.
+     */
+    private void finishInstruction(int pending, int dstReg) {
+      completeLoad(pending);
+
+      if (dstReg != 0)
+        asm.emitLocal(ClassAssembler.ISTORE, registerLocals[dstReg]);
+      else
+        asm.emit(ClassAssembler.POP);
+    }
+
+    private void completeLoad(int pending) {
+      if (pending != 0) {
+        asm.emitLocal(ClassAssembler.ILOAD, pendingValue);
+        asm.emitLocal(ClassAssembler.ISTORE, registerLocals[pending]);
+      }
+    }
+
+    private void pushRegister(int r) {
+      if (r == 0)
+        asm.pushInt(0);
+      else
+        asm.emitLocal(ClassAssembler.ILOAD, registerLocals[r]);
+    }
+
+    /** Push a register as a <tt>long</tt>, zero-extended if unsigned. */
+    private void pushWidened(int r, boolean unsigned) {
+      pushRegister(r);
+      asm.emit(ClassAssembler.I2L);
+      if (unsigned) {
+        asm.pushLong(0xFFFFFFFFL);
+        asm.emit(ClassAssembler.LAND);
+      }
+    }
+
+    /** Write back the registers, and return having retired some instructions. */
+    private void emitLeave(int count, int pending) {
+      writeBackRegisters();
+      asm.emitLocal(ClassAssembler.ALOAD, 0);
+      asm.pushInt(count);
+      asm.pushInt(pending);
+      asm.emitLocal(ClassAssembler.ILOAD, pendingValue);
+      asm.emitConstant(ClassAssembler.INVOKEVIRTUAL, leave);
+      asm.pushInt(count);
+      asm.emit(ClassAssembler.IRETURN);
+    }
+
+    private void writeBackRegisters() {
+      for (int i = 0; i < numWritten; i++) {
+        asm.emitLocal(ClassAssembler.ALOAD, 1);
+        asm.pushInt(writtenRegisters[i]);
+        asm.emitLocal(ClassAssembler.ILOAD, registerLocals[writtenRegisters[i]]);
+        asm.emit(ClassAssembler.IASTORE);
+      }
+    }
+
+    private boolean writesAny(int r) {
+      for (Decoded d : code) {
+        if ((writes(d) & (1L << r)) != 0)
+          return true;
+      }
+      return false;
+    }
+
+    /** Return the registers an instruction reads, one bit each. */
+    private static long reads(Decoded d) {
+      long reads;
+
+      switch (d.operation) {
+      case Mips.ADD:
+      case Mips.SLT:
+      case Mips.AND:
+      case Mips.OR:
+      case Mips.XOR:
+      case Mips.NOR:
+        reads = (1L << d.rs) | (Lib.test(Mips.SRC2IMM, d.flags) ? 0 : 1L << d.rt);
+        break;
+      case Mips.SUB:
+      case Mips.MULT:
+      case Mips.STORE:
+        reads = (1L << d.rs) | (1L << d.rt);
+        break;
+      case Mips.SLL:
+      case Mips.SRL:
+      case Mips.SRA:
+        reads = (1L << d.rt) | (Lib.test(Mips.SRC1SH, d.flags) ? 0 : 1L << d.rs);
+        break;
+      case Mips.MFLO:
+        reads = 1L << regLo;
+        break;
+      case Mips.MFHI:
+        reads = 1L << regHi;
+        break;
+      case Mips.LOAD:
+        reads = 1L << d.rs;
+        break;
+      default:
+        reads = 0;
+        break;
+      }
+
+      return reads & ~1L;
+    }
+
+    /** Return the registers an instruction writes, one bit each. */
+    private static long writes(Decoded d) {
+      switch (d.operation) {
+      case Mips.MULT:
+        return (1L << regLo) | (1L << regHi);
+      case Mips.STORE:
+        return 0;
+      default:
+        return (1L << d.dstReg) & ~1L;
+      }
+    }
+
+    /** The registers the first instruction reads, one bit each. */
+    long entryReads;
+
+    private Decoded[] code;
+    private ClassAssembler asm;
+    private int leave;
+
+    /** The local each register is kept in, or 0 if it is not used. */
+    private int[] registerLocals = new int[numUserRegisters];
+    private int[] usedRegisters = new int[numUserRegisters];
+    private int numUsed = 0;
+    private int[] writtenRegisters = new int[numUserRegisters];
+    private int numWritten = 0;
+
+    // locals 0 and 1 are this and the registers, and 2 is the code epoch
+    private static final int pendingValue = 3, loaded = 4, firstRegisterLocal = 5;
+    private static final int maxStack = 8;
+
+    private static final String className = "nachos/machine/Processor$Compiled";
+    private static final String superName = "nachos/machine/Processor$CompiledCode";
   }
 
   private static class Mips {
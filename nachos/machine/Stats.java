@@ -22,6 +22,20 @@ public final class Stats {
     System.out.println("Disk I/O: reads " + numDiskReads + ", writes " + numDiskWrites);
     System.out.println("Console I/O: reads " + numConsoleReads + ", writes " + numConsoleWrites);
     System.out.println("Paging: page faults " + numPageFaults + ", TLB misses " + numTLBMisses);
+    if (numTLBMisses > 0)
+      System.out.println("TLB misses: fetch " + numTLBFetchMisses + ", read " + numTLBReadMisses + ", write "
+          + numTLBWriteMisses);
+    if (replacementPolicy != null)
+      System.out.println("Replacement: " + replacementPolicy + ", evictions " + numEvictions + ", swap reads "
+          + numSwapReads + ", swap writes " + numSwapWrites + ", faults per million user ticks "
+          + (userTicks > 0 ? numPageFaults * 1000000L / userTicks : 0) + ", prefetched " + numPagesPrefetched
+          + ", prefetch hits " + numPrefetchHits + ", copy-on-write faults " + numCopyOnWrites);
+    if (numFileRequests > 0)
+      System.out.println("File requests: " + numFileRequests + ", merged " + numMergedRequests + ", seeks "
+          + numFileSeeks);
+    if (numCacheHits + numCacheMisses > 0)
+      System.out.println("File cache: hits " + numCacheHits + ", misses " + numCacheMisses + ", write-backs "
+          + numCacheWriteBacks);
     System.out.println("Network I/O: received " + numPacketsReceived + ", sent " + numPacketsSent);
   }
 
@@ -50,6 +64,38 @@ public final class Stats {
   public int numPageFaults = 0;
   /** The total number of TLB misses that have occurred. */
   public int numTLBMisses = 0;
+  /** The number of TLB misses caused by instruction fetches. */
+  public int numTLBFetchMisses = 0;
+  /** The number of TLB misses caused by data reads. */
+  public int numTLBReadMisses = 0;
+  /** The number of TLB misses caused by data writes. */
+  public int numTLBWriteMisses = 0;
+  /** The name of the kernel's page replacement policy, if it has one. */
+  public String replacementPolicy = null;
+  /** The number of pages the kernel has evicted from physical memory. */
+  public int numEvictions = 0;
+  /** The number of pages the kernel has read from swap. */
+  public int numSwapReads = 0;
+  /** The number of pages the kernel has written to swap. */
+  public int numSwapWrites = 0;
+  /** The number of pages the kernel has read ahead of a page fault. */
+  public int numPagesPrefetched = 0;
+  /** The number of pages read ahead that were later used. */
+  public int numPrefetchHits = 0;
+  /** The number of shared pages a process has had to copy to write. */
+  public int numCopyOnWrites = 0;
+  /** The number of requests queued to the stub file system's controller. */
+  public int numFileRequests = 0;
+  /** The number of those requests serviced along with the one before them. */
+  public int numMergedRequests = 0;
+  /** The number of times the controller has had to move its head. */
+  public int numFileSeeks = 0;
+  /** The number of file blocks found in the kernel's buffer cache. */
+  public int numCacheHits = 0;
+  /** The number of file blocks the buffer cache has had to read in. */
+  public int numCacheMisses = 0;
+  /** The number of dirty blocks the buffer cache has written back. */
+  public int numCacheWriteBacks = 0;
   /** The total number of packets Nachos has sent to the network. */
   public int numPacketsSent = 0;
   /** The total number of packets Nachos has received from the network. */
@@ -6,8 +6,12 @@ import nachos.security.*;
 import nachos.threads.*;
 
 import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.io.RandomAccessFile;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * This class implements a file system that redirects all requests to the host
@@ -23,13 +27,19 @@ public class StubFileSystem implements FileSystem {
   public StubFileSystem(Privilege privilege, File directory) {
     this.privilege = privilege;
     this.directory = directory;
+
+    if (Config.getBoolean("StubFileSystem.asyncIO", false))
+      controller = new Controller();
   }
 
   public OpenFile open(String name, boolean truncate) {
     if (!checkName(name))
       return null;
 
-    delay();
+    delay(name, 0, 0);
+
+    if (truncate)
+      fileChanging(name);
 
     try {
       return new StubOpenFile(name, truncate);
@@ -38,17 +48,62 @@ public class StubFileSystem implements FileSystem {
     }
   }
 
+  /**
+   * Open a file for reading only, by mapping it into the host's memory. Reads
+   * copy straight out of the mapping, instead of seeking and reading the host
+   * file, but take the same simulated time as reads of a file returned by
+   * <tt>open()</tt>. The file cannot be written through, and its length is fixed
+   * when it is opened. Before the file is written, truncated or removed through
+   * this file system, the mapping is replaced by a copy of its contents, so
+   * that the open file keeps reading what it did and never faults on a page
+   * past the new end of the file.
+   *
+   * @param name the name of the file to open.
+   * @return an <tt>OpenFile</tt> for the file, or <tt>null</tt> if it does not
+   *         exist or could not be mapped.
+   */
+  public OpenFile openMapped(String name) {
+    if (!checkName(name))
+      return null;
+
+    delay(name, 0, 0);
+
+    try {
+      return new MappedOpenFile(name);
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
   public boolean remove(String name) {
     if (!checkName(name))
       return false;
 
-    delay();
+    delay(name, 0, 0);
+
+    fileChanging(name);
 
     FileRemover fr = new FileRemover(new File(directory, name));
     privilege.doPrivileged(fr);
     return fr.successful;
   }
 
+  /**
+   * Called before a file is written, truncated or removed. Forget its parsed
+   * headers, and detach every mapped open file of it from the host file.
+   */
+  private void fileChanging(String name) {
+    Coff.invalidateParsed(this, name);
+
+    for (Iterator<MappedOpenFile> i = mappedFiles.iterator(); i.hasNext();) {
+      MappedOpenFile file = i.next();
+      if (file.getName().equals(name)) {
+        file.detach();
+        i.remove();
+      }
+    }
+  }
+
   private class FileRemover implements Runnable {
     public FileRemover(File f) {
       this.f = f;
@@ -62,13 +117,158 @@ public class StubFileSystem implements FileSystem {
     private File f;
   }
 
-  private void delay() {
+  /**
+   * Wait for a request to the specified bytes of a file to be serviced. In
+   * asynchronous mode the request is queued to the simulated controller, and
+   * the calling thread sleeps until the controller's completion interrupt.
+   * Otherwise the thread sleeps for a fixed time.
+   */
+  private void delay(String name, int pos, int length) {
+    if (controller != null) {
+      controller.request(name, pos, length);
+      return;
+    }
+
     long time = Machine.timer().getTime();
     int amount = 1000;
     ThreadedKernel.alarm.waitUntil(amount);
     Lib.assertTrue(Machine.timer().getTime() >= time + amount);
   }
 
+  private static int totalLength(int[] lengths, int count) {
+    int length = 0;
+    for (int i = 0; i < count; i++)
+      length += lengths[i];
+    return length;
+  }
+
+  /**
+   * A simulated controller that services file requests one batch at a time,
+   * completing each batch with an interrupt. Waiting requests are serviced in
+   * elevator order: the head sweeps up through the files, taken in order of
+   * name and then offset, and back down once nothing is left ahead of it. A
+   * batch is the request the head reaches plus every waiting request that
+   * continues it in the same file, so adjacent requests cost a single service
+   * time. Moving the head anywhere but the end of the last batch costs a seek.
+   */
+  private class Controller {
+    /**
+     * Queue a request and sleep until it completes.
+     */
+    void request(String name, int pos, int length) {
+      Request request = new Request(name, pos, length);
+
+      boolean intStatus = Machine.interrupt().disable();
+
+      privilege.stats.numFileRequests++;
+      waiting.add(request);
+      if (batch.isEmpty())
+        startBatch();
+
+      Machine.interrupt().restore(intStatus);
+
+      request.done.P();
+    }
+
+    private void startBatch() {
+      Request next = nextRequest(ascending);
+      if (next == null) {
+        ascending = !ascending;
+        next = nextRequest(ascending);
+      }
+
+      waiting.remove(next);
+      batch.add(next);
+
+      int serviceTime = Stats.RotationTime;
+      if (!next.name.equals(headName) || next.pos != headPos) {
+        serviceTime += Stats.SeekTime;
+        privilege.stats.numFileSeeks++;
+      }
+
+      headName = next.name;
+      headPos = next.pos + next.length;
+      for (boolean merged = true; merged;) {
+        merged = false;
+        for (Iterator<Request> i = waiting.iterator(); i.hasNext();) {
+          Request request = i.next();
+          if (request.length > 0 && request.name.equals(headName) && request.pos == headPos) {
+            i.remove();
+            batch.add(request);
+            headPos += request.length;
+            privilege.stats.numMergedRequests++;
+            merged = true;
+          }
+        }
+      }
+
+      privilege.interrupt.schedule(serviceTime, "file system", new Runnable() {
+        public void run() {
+          completeBatch();
+        }
+      });
+    }
+
+    /**
+     * Return the nearest waiting request at or ahead of the head in the
+     * specified direction, or <tt>null</tt> if there is none.
+     */
+    private Request nextRequest(boolean up) {
+      Request nearest = null;
+      for (Request request : waiting) {
+        int distance = compare(request.name, request.pos);
+        if (!up)
+          distance = -distance;
+        if (distance < 0)
+          continue;
+
+        if (nearest == null || (up ? compareRequests(request, nearest) : compareRequests(nearest, request)) < 0)
+          nearest = request;
+      }
+      return nearest;
+    }
+
+    /**
+     * Compare a place in a file with the head.
+     */
+    private int compare(String name, int pos) {
+      int order = name.compareTo(headName);
+      return (order != 0) ? order : Integer.compare(pos, headPos);
+    }
+
+    private int compareRequests(Request a, Request b) {
+      int order = a.name.compareTo(b.name);
+      return (order != 0) ? order : Integer.compare(a.pos, b.pos);
+    }
+
+    private void completeBatch() {
+      for (Request request : batch)
+        request.done.V();
+      batch.clear();
+
+      if (!waiting.isEmpty())
+        startBatch();
+    }
+
+    private LinkedList<Request> waiting = new LinkedList<Request>();
+    private LinkedList<Request> batch = new LinkedList<Request>();
+    private String headName = "";
+    private int headPos = 0;
+    private boolean ascending = true;
+  }
+
+  private static class Request {
+    Request(String name, int pos, int length) {
+      this.name = name;
+      this.pos = pos;
+      this.length = length;
+    }
+
+    String name;
+    int pos, length;
+    Semaphore done = new Semaphore(0);
+  }
+
   private class StubOpenFile extends OpenFileWithPosition {
     StubOpenFile(final String name, final boolean truncate) throws IOException {
       super(StubFileSystem.this, name);
@@ -109,7 +309,7 @@ public class StubFileSystem implements FileSystem {
         return -1;
 
       try {
-        delay();
+        delay(getName(), pos, length);
 
         file.seek(pos);
         return Math.max(0, file.read(buf, offset, length));
@@ -123,8 +323,9 @@ public class StubFileSystem implements FileSystem {
         return -1;
 
       try {
-        delay();
+        delay(getName(), pos, length);
 
+        fileChanging(getName());
         file.seek(pos);
         file.write(buf, offset, length);
         return length;
@@ -133,6 +334,49 @@ public class StubFileSystem implements FileSystem {
       }
     }
 
+    public int read(int pos, byte[] buf, int[] offsets, int[] lengths, int count) {
+      if (!open)
+        return -1;
+
+      try {
+        delay(getName(), pos, totalLength(lengths, count));
+
+        file.seek(pos);
+
+        int amount = 0;
+        for (int i = 0; i < count; i++) {
+          int read = Math.max(0, file.read(buf, offsets[i], lengths[i]));
+          amount += read;
+          if (read < lengths[i])
+            break;
+        }
+        return amount;
+      } catch (IOException e) {
+        return -1;
+      }
+    }
+
+    public int write(int pos, byte[] buf, int[] offsets, int[] lengths, int count) {
+      if (!open)
+        return -1;
+
+      try {
+        delay(getName(), pos, totalLength(lengths, count));
+
+        fileChanging(getName());
+        file.seek(pos);
+
+        int amount = 0;
+        for (int i = 0; i < count; i++) {
+          file.write(buf, offsets[i], lengths[i]);
+          amount += lengths[i];
+        }
+        return amount;
+      } catch (IOException e) {
+        return -1;
+      }
+    }
+
     public int length() {
       try {
         return (int) file.length();
@@ -157,8 +401,121 @@ public class StubFileSystem implements FileSystem {
     private boolean open = false;
   }
 
+  private class MappedOpenFile extends OpenFileWithPosition {
+    MappedOpenFile(final String name) throws IOException {
+      super(StubFileSystem.this, name);
+
+      final File f = new File(directory, name);
+
+      if (openCount == maxOpenFiles)
+        throw new IOException();
+
+      privilege.doPrivileged(new Runnable() {
+        public void run() {
+          mapFile(f);
+        }
+      });
+
+      if (buffer == null)
+        throw new IOException();
+
+      open = true;
+      openCount++;
+      mappedFiles.add(this);
+    }
+
+    private void mapFile(File f) {
+      try {
+        if (!f.exists())
+          return;
+
+        // the mapping stays valid once the file is closed
+        RandomAccessFile file = new RandomAccessFile(f, "r");
+        try {
+          buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        } finally {
+          file.close();
+        }
+      } catch (IOException e) {
+      }
+    }
+
+    public int read(int pos, byte[] buf, int offset, int length) {
+      if (!open || pos < 0)
+        return -1;
+
+      delay(getName(), pos, length);
+
+      int amount = Math.max(0, Math.min(length, buffer.limit() - pos));
+      if (amount > 0) {
+        buffer.position(pos);
+        buffer.get(buf, offset, amount);
+      }
+      return amount;
+    }
+
+    public int read(int pos, byte[] buf, int[] offsets, int[] lengths, int count) {
+      if (!open || pos < 0)
+        return -1;
+
+      delay(getName(), pos, totalLength(lengths, count));
+
+      int amount = 0;
+      for (int i = 0; i < count; i++) {
+        int read = Math.max(0, Math.min(lengths[i], buffer.limit() - pos - amount));
+        if (read > 0) {
+          buffer.position(pos + amount);
+          buffer.get(buf, offsets[i], read);
+        }
+        amount += read;
+        if (read < lengths[i])
+          break;
+      }
+      return amount;
+    }
+
+    public int write(int pos, byte[] buf, int offset, int length) {
+      return -1;
+    }
+
+    public int length() {
+      return open ? buffer.limit() : -1;
+    }
+
+    /**
+     * Replace the mapping with a copy of the file's contents, since the host
+     * file is about to change.
+     */
+    void detach() {
+      ByteBuffer copy = ByteBuffer.allocate(buffer.limit());
+      buffer.position(0);
+      copy.put(buffer);
+      copy.flip();
+      buffer = copy;
+    }
+
+    public void close() {
+      if (open) {
+        open = false;
+        openCount--;
+        mappedFiles.remove(this);
+      }
+
+      buffer = null;
+    }
+
+    /** The mapping of the file, or a copy of it once the file has changed. */
+    private ByteBuffer buffer = null;
+    private boolean open = false;
+  }
+
+  /** The simulated controller, or <tt>null</tt> if requests are synchronous. */
+  private Controller controller = null;
+
   private int openCount = 0;
   private static final int maxOpenFiles = 16;
+  /** The mapped open files that still read from their host file. */
+  private LinkedList<MappedOpenFile> mappedFiles = new LinkedList<MappedOpenFile>();
 
   private Privilege privilege;
   private File directory;
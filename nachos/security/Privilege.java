@@ -149,6 +149,26 @@ public abstract class Privilege {
      *                     MIPS user code.
      */
     public void tick(boolean inKernelMode);
+
+    /**
+     * Advance the simulated time by several ticks at once. This has the same
+     * effect as calling <tt>tick(inKernelMode)</tt> <i>count</i> times, provided
+     * no interrupt comes due before the last of those ticks.
+     *
+     * @param inKernelMode <tt>true</tt> if the current thread is running kernel
+     *                     code, <tt>false</tt> if the current thread is running
+     *                     MIPS user code.
+     * @param count        the number of ticks to advance by.
+     */
+    public void tick(boolean inKernelMode, int count);
+
+    /**
+     * Return the number of ticks until the next pending interrupt is due.
+     *
+     * @return the number of ticks until the next interrupt, or
+     *         <tt>Long.MAX_VALUE</tt> if no interrupt is pending.
+     */
+    public long ticksUntilDue();
   }
 
   /**
@@ -0,0 +1,38 @@
+/* syscalls.c
+ *	Microbenchmark for the cost of entering and leaving the kernel.
+ *
+ *	Makes a large number of cheap system calls and then halts. Every
+ *	close() of an invalid file descriptor goes all the way through the
+ *	processor's exception path and the kernel's syscall dispatch, but does
+ *	no real work, so the host time to run this program is dominated by
+ *	the syscall path itself.
+ *
+ *	syscalls.coff is not checked in. Build it with the MIPS cross-compiler
+ *	like the other test programs, with ARCHDIR set as described in the
+ *	Makefile:
+ *
+ *		gmake syscalls.coff
+ *
+ *	Then time it, and halt.coff for the start-up cost, from proj2:
+ *
+ *		time java nachos.machine.Machine -x syscalls.coff
+ *		time java nachos.machine.Machine -x halt.coff
+ *
+ *	and divide NUMCALLS by the difference to get syscalls/second.
+ */
+
+#include "syscall.h"
+
+#define NUMCALLS	1000000
+
+int
+main()
+{
+    int i;
+
+    for (i = 0; i < NUMCALLS; i++)
+	close(-1);
+
+    halt();
+    /* not reached */
+}
@@ -43,8 +43,11 @@ public class Alarm {
           temp = sleepingThreads.peek();
       }
       
+      boolean preempt = ThreadedKernel.scheduler.shouldPreempt();
+      
       Machine.interrupt().restore(intStatus);
-      KThread.currentThread().yield();
+      if (preempt)
+        KThread.currentThread().yield();
   }
 
   /**
@@ -35,10 +35,11 @@ public class Condition2 {
 
     conditionLock.release();
 
-    Machine.interrupt().disable();
+    boolean intStatus = Machine.interrupt().disable();
     num++;
     Queue.waitForAccess(KThread.currentThread());
     KThread.sleep();
+    Machine.interrupt().restore(intStatus);
 
     conditionLock.acquire();
   }
@@ -0,0 +1,317 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Comparator;
+import java.util.TreeSet;
+
+/**
+ * A scheduler that divides the processor fairly by virtual runtime, in the
+ * manner of a completely fair scheduler.
+ *
+ * <p>
+ * Each thread has a weight, set through its priority, and a <i>virtual
+ * runtime</i>: the ticks it has run, measured with <tt>Machine.timer()</tt>,
+ * scaled down by its weight. Waiting threads are kept in a balanced tree by
+ * virtual runtime, and the next thread dequeued is the one that has had the
+ * least. Each queue tracks the virtual runtime of the threads it dequeues,
+ * which only moves forward. A thread that starts waiting is raised to no less
+ * than half a latency period behind it, so that a thread that slept cannot
+ * claim the processor for longer than that.
+ *
+ * <p>
+ * A thread is given a time slice when it is dequeued: its weight's share of
+ * <tt>latency</tt> ticks among the runnable threads, but no less than
+ * <tt>minGranularity</tt>. The timer interrupt only preempts the thread once
+ * its slice has run out, rather than on every tick, so fewer context switches
+ * are made.
+ *
+ * <p>
+ * This scheduler does not transfer priority.
+ */
+public class FairScheduler extends Scheduler {
+  /**
+   * Allocate a new fair scheduler.
+   */
+  public FairScheduler() {
+    latency = Config.getInteger("FairScheduler.latency", 4000);
+    minGranularity = Config.getInteger("FairScheduler.minGranularity", 1000);
+
+    Lib.assertTrue(latency > 0 && minGranularity > 0);
+  }
+
+  /**
+   * Allocate a new fair thread queue.
+   *
+   * @param transferPriority ignored. This scheduler does not transfer priority.
+   * @return a new thread queue.
+   */
+  public ThreadQueue newThreadQueue(boolean transferPriority) {
+    return new FairQueue();
+  }
+
+  public int getPriority(KThread thread) {
+    Lib.assertTrue(Machine.interrupt().disabled());
+    return getThreadState(thread).priority;
+  }
+
+  public int getEffectivePriority(KThread thread) {
+    return getPriority(thread);
+  }
+
+  public void setPriority(KThread thread, int priority) {
+    Lib.assertTrue(Machine.interrupt().disabled());
+    Lib.assertTrue(priority >= priorityMinimum && priority <= priorityMaximum);
+    getThreadState(thread).setPriority(priority);
+  }
+
+  public boolean increasePriority() {
+    boolean intStatus = Machine.interrupt().disable();
+    KThread thread = KThread.currentThread();
+    int priority = getPriority(thread);
+    if (priority == priorityMaximum) {
+      Machine.interrupt().restore(intStatus);
+      return false;
+    }
+    setPriority(thread, priority + 1);
+    Machine.interrupt().restore(intStatus);
+    return true;
+  }
+
+  public boolean decreasePriority() {
+    boolean intStatus = Machine.interrupt().disable();
+    KThread thread = KThread.currentThread();
+    int priority = getPriority(thread);
+    if (priority == priorityMinimum) {
+      Machine.interrupt().restore(intStatus);
+      return false;
+    }
+    setPriority(thread, priority - 1);
+    Machine.interrupt().restore(intStatus);
+    return true;
+  }
+
+  /**
+   * Preempt the current thread only if its time slice has run out and another
+   * thread is waiting for the processor.
+   */
+  public boolean shouldPreempt() {
+    Lib.assertTrue(Machine.interrupt().disabled());
+    ThreadState state = getThreadState(KThread.currentThread());
+    if (state.runningSince < 0 || state.dispatchedBy == null) {
+      return true;
+    }
+    return !state.dispatchedBy.waiting.isEmpty()
+        && Machine.timer().getTime() - state.runningSince >= state.slice;
+  }
+
+  /**
+   * The default priority for a new thread.
+   */
+  public static final int priorityDefault = 1;
+  /**
+   * The minimum priority that a thread can have.
+   */
+  public static final int priorityMinimum = 0;
+  /**
+   * The maximum priority that a thread can have.
+   */
+  public static final int priorityMaximum = 7;
+
+  /**
+   * The weight of a thread at each priority. Each step up is worth about 25%
+   * more of the processor.
+   */
+  private static final int[] weights = { 820, 1024, 1280, 1600, 2000, 2500, 3125, 3906 };
+
+  /**
+   * Return the scheduling state of the specified thread.
+   *
+   * @param thread the thread whose scheduling state to return.
+   * @return the scheduling state of the specified thread.
+   */
+  protected ThreadState getThreadState(KThread thread) {
+    if (thread.schedulingState == null) {
+      thread.schedulingState = new ThreadState(thread);
+    }
+    return (ThreadState) thread.schedulingState;
+  }
+
+  /**
+   * A <tt>ThreadQueue</tt> that dequeues the waiting thread with the least
+   * virtual runtime. Waiting threads are kept in a red-black tree, ordered by
+   * virtual runtime and then by the order they started waiting.
+   */
+  protected class FairQueue extends ThreadQueue {
+    public void waitForAccess(KThread thread) {
+      Lib.assertTrue(Machine.interrupt().disabled());
+      ThreadState state = getThreadState(thread);
+      Lib.assertTrue(state.waitingOn == null);
+
+      // a thread stopping itself is charged for its slice; any other was
+      // blocked, and is not running
+      if (thread == KThread.currentThread()) {
+        state.charge();
+      } else {
+        state.runningSince = -1;
+        state.dispatchedBy = null;
+      }
+
+      state.vruntime = Math.max(state.vruntime, minVruntime - latency / 2);
+      state.arrival = nextArrival++;
+      state.waitingOn = this;
+      waiting.add(state);
+      totalWeight += state.getWeight();
+    }
+
+    public void acquire(KThread thread) {
+      Lib.assertTrue(Machine.interrupt().disabled());
+      ThreadState state = getThreadState(thread);
+      if (state.waitingOn == this) {
+        remove(state);
+      }
+    }
+
+    /**
+     * Dequeue the thread with the least virtual runtime and start its time
+     * slice. The ready queue is the only queue whose dequeued threads run
+     * straight away; a thread dequeued from any other queue is made ready, and
+     * its slice is started over when the ready queue dequeues it in turn.
+     */
+    public KThread nextThread() {
+      Lib.assertTrue(Machine.interrupt().disabled());
+      KThread firstThread = pickNextThread();
+      if (firstThread != null) {
+        ThreadState state = getThreadState(firstThread);
+        minVruntime = Math.max(minVruntime, state.vruntime);
+        acquire(firstThread);
+        state.dispatch(this);
+      }
+      return firstThread;
+    }
+
+    /**
+     * Return the next thread that <tt>nextThread()</tt> would return, without
+     * modifying the state of this queue.
+     *
+     * @return the next thread that <tt>nextThread()</tt> would return.
+     */
+    protected KThread pickNextThread() {
+      return waiting.isEmpty() ? null : waiting.first().thread;
+    }
+
+    public void print() {
+      Lib.assertTrue(Machine.interrupt().disabled());
+      for (ThreadState state : waiting) {
+        System.out.print("Thread: " + state.thread + "\t  Virtual runtime: " + state.vruntime + "\n");
+      }
+    }
+
+    private void remove(ThreadState state) {
+      waiting.remove(state);
+      totalWeight -= state.getWeight();
+      state.waitingOn = null;
+    }
+
+    /**
+     * Return the time slice for a thread about to run: its weight's share of
+     * the latency period among the threads still waiting and itself.
+     */
+    private long getSlice(ThreadState state) {
+      long weight = state.getWeight();
+      return Math.max(minGranularity, latency * weight / (totalWeight + weight));
+    }
+
+    private TreeSet<ThreadState> waiting = new TreeSet<ThreadState>(new Comparator<ThreadState>() {
+      public int compare(ThreadState a, ThreadState b) {
+        if (a.vruntime != b.vruntime) {
+          return (a.vruntime < b.vruntime) ? -1 : 1;
+        }
+        return Long.compare(a.arrival, b.arrival);
+      }
+    });
+    /** The sum of the weights of the waiting threads. */
+    private long totalWeight = 0;
+    /** The highest virtual runtime of a thread dequeued so far. */
+    private long minVruntime = 0;
+    private long nextArrival = 0;
+  }
+
+  /**
+   * The scheduling state of a thread: its priority, its virtual runtime, and
+   * the time slice it was given when it was last dequeued.
+   *
+   * @see nachos.threads.KThread#schedulingState
+   */
+  protected class ThreadState {
+    /**
+     * Allocate a new <tt>ThreadState</tt> object and associate it with the
+     * specified thread.
+     *
+     * @param thread the thread this state belongs to.
+     */
+    public ThreadState(KThread thread) {
+      this.thread = thread;
+    }
+
+    /**
+     * Set the priority, and so the weight, of the associated thread.
+     *
+     * @param priority the new priority.
+     */
+    public void setPriority(int priority) {
+      if (waitingOn != null) {
+        waitingOn.totalWeight += weights[priority] - getWeight();
+      }
+      this.priority = priority;
+    }
+
+    /**
+     * Return the weight of the associated thread.
+     *
+     * @return the weight of the associated thread.
+     */
+    public int getWeight() {
+      return weights[priority];
+    }
+
+    /**
+     * Called when the associated thread is dequeued. If it is about to run,
+     * this is when its time slice starts.
+     */
+    void dispatch(FairQueue queue) {
+      runningSince = Machine.timer().getTime();
+      dispatchedBy = queue;
+      slice = queue.getSlice(this);
+    }
+
+    /**
+     * Called when the associated thread stops running. Add the ticks it has run,
+     * scaled by its weight, to its virtual runtime.
+     */
+    void charge() {
+      if (runningSince >= 0) {
+        long ran = Machine.timer().getTime() - runningSince;
+        vruntime += ran * weights[priorityDefault] / getWeight();
+        runningSince = -1;
+      }
+      dispatchedBy = null;
+    }
+
+    protected KThread thread;
+    protected int priority = priorityDefault;
+    protected long vruntime = 0;
+    /** When the thread last started running, or -1 if it is not running. */
+    protected long runningSince = -1;
+    /** The length of the thread's current time slice, in ticks. */
+    protected long slice = 0;
+    protected FairQueue waitingOn = null;
+    /** The queue that last dequeued the thread. */
+    private FairQueue dispatchedBy = null;
+    /** When the thread started waiting on <tt>waitingOn</tt>, to break ties. */
+    private long arrival;
+  }
+
+  private int latency;
+  private int minGranularity;
+}
@@ -2,7 +2,6 @@ package nachos.threads;
 
 import nachos.machine.*;
 import nachos.threads.*;
-import java.util.*;
 
 /**
  * A scheduler that chooses threads using a lottery.
@@ -24,8 +23,6 @@ import java.util.*;
  * Unlike a priority scheduler, these tickets add (as opposed to just taking the
  * maximum).
  */
-
-
 public class LotteryScheduler extends PriorityScheduler {
   /**
    * Allocate a new lottery scheduler.
@@ -33,11 +30,6 @@ public class LotteryScheduler extends PriorityScheduler {
   public LotteryScheduler() {
   }
 
-  /*Global bounds for priority*/
-  public static final int priorityDefault = 1;
-  public static final int priorityMinimum = 1;
-  public static final int priorityMaximum= Integer.MAX_VALUE;
-
   /**
    * Allocate a new lottery thread queue.
    *
@@ -46,110 +38,350 @@ public class LotteryScheduler extends PriorityScheduler {
    * @return a new lottery thread queue.
    */
   public ThreadQueue newThreadQueue(boolean transferPriority) {
-      	return new PriorityQueue(transferPriority);
+    return new LotteryQueue(transferPriority);
   }
 
-  public KThread nextThread(){
-    boolean intStatus = Machine.interrupt().disabled();
-      queueOwner = null;
-    if(threads.isEmpty()){
-      Machine.interrupt().restore(intStatus);
-      return null;
-    }
-    
-    queueOwner = pickNextThread().thread;
-
-    if(queueOwner != null)
-      acquire(queueOwner);
-
-    Machine.interrupt().restore(intStatus);
-    return queueOwner;
+  public int getPriority(KThread thread) {
+    Lib.assertTrue(Machine.interrupt().disabled());
+    return getLotteryState(thread).tickets;
   }
 
-  public ThreadState pickNextThread() {
-    if(threads.isEmpty())
-      return null;
-    int roll, index;
-    int transferAmt = 0;
-    Random rand = new Random();
-    roll = rand.nextInt(ticketSum() + 1);
-
-    for(int i = priorityMinimum; i < threads.size(); i++){
-      KThread thread = (KThread) threads.get(i);
-      transferAmt += getThreadPriority(thread);
-      if(transferAmt >= roll){
-       next = getThreadState((KThread) threads.get(i));
-       break;
-      }
-    }
-    return next;
-}
-
-  public int ticketSum(){
-    /* amount of tickets to be transferred*/
-    int transferAmt = 0;
-
-    for(int i = 0; i < threads.size(); i++){
-      KThread thread = (KThread) threads.get(i);
-      transferAmt += getThreadPriority(thread);
-      enforcePriorityBounds(transferAmt);
-    }
-
-    return transferAmt;
+  /**
+   * Return the tickets a thread holds, including the tickets donated to it,
+   * clamped to the range of an <tt>int</tt>.
+   */
+  public int getEffectivePriority(KThread thread) {
+    return (int) Math.min(getEffectiveTickets(thread), Integer.MAX_VALUE);
   }
 
-  /*Ensures priority Min/Max aren't passed*/
-  public void enforcePriorityBounds(int priority) {
-    if(priority < priorityMinimum)
-      priority = priorityMinimum;
-    else if(priority > priorityMaximum)
-      priority = priorityMaximum;
+  /**
+   * Return the tickets a thread holds, including the tickets donated to it.
+   *
+   * @param thread the thread to query.
+   * @return the thread's effective tickets.
+   */
+  public long getEffectiveTickets(KThread thread) {
+    Lib.assertTrue(Machine.interrupt().disabled());
+    return getLotteryState(thread).effectiveTickets;
   }
 
-
-  public int getThreadPriority(KThread thread) {
-    return getThreadState(thread).getPriority();
+  public void setPriority(KThread thread, int priority) {
+    Lib.assertTrue(Machine.interrupt().disabled());
+    Lib.assertTrue(priority >= priorityMinimum && priority <= priorityMaximum);
+    getLotteryState(thread).setTickets(priority);
   }
 
-  public void acquire(KThread thread){
-    threads.remove(thread);
-    acqThreads.add(thread);
-  }
   public boolean increasePriority() {
-    boolean intStatus = Machine.interrupt().disabled();
+    boolean intStatus = Machine.interrupt().disable();
     KThread thread = KThread.currentThread();
     int priority = getPriority(thread);
-    if(priority == priorityMaximum){
+    if (priority == priorityMaximum) {
+      Machine.interrupt().restore(intStatus);
       return false;
-    }else{
-      setPriority(thread, priority++);
     }
+    setPriority(thread, priority + 1);
     Machine.interrupt().restore(intStatus);
     return true;
   }
 
-
   public boolean decreasePriority() {
-    boolean intStatus = Machine.interrupt().disabled();
+    boolean intStatus = Machine.interrupt().disable();
     KThread thread = KThread.currentThread();
     int priority = getPriority(thread);
-    if(priority == priorityMinimum){
+    if (priority == priorityMinimum) {
+      Machine.interrupt().restore(intStatus);
       return false;
-    }else{
-      setPriority(thread, priority--);
     }
+    setPriority(thread, priority - 1);
     Machine.interrupt().restore(intStatus);
     return true;
   }
 
-  public void setPriority(KThread thread, int priority){
-    Lib.assertTrue(Machine.interrupt().disabled());
-    if(decreasePriority() && increasePriority()){
-      getThreadState(thread).setPriority(priority);
+  /**
+   * The default number of tickets for a new thread.
+   */
+  public static final int priorityDefault = 1;
+  /**
+   * The fewest tickets a thread can hold.
+   */
+  public static final int priorityMinimum = 1;
+  /**
+   * The most tickets a thread can hold, not counting donations.
+   */
+  public static final int priorityMaximum = Integer.MAX_VALUE;
+
+  /**
+   * Return the lottery state of the specified thread.
+   *
+   * @param thread the thread whose lottery state to return.
+   * @return the lottery state of the specified thread.
+   */
+  protected LotteryState getLotteryState(KThread thread) {
+    if (thread.schedulingState == null) {
+      thread.schedulingState = new LotteryState(thread);
     }
+    return (LotteryState) thread.schedulingState;
   }
-  protected ThreadState next;
-  protected KThread queueOwner;
-  protected LinkedList<KThread> acqThreads = new LinkedList<KThread>(); //"acquired" threads
-  protected LinkedList<KThread> threads = new LinkedList<KThread>();// all threads
-}
\ No newline at end of file
+
+  /**
+   * A <tt>ThreadQueue</tt> that holds a lottery among its waiting threads.
+   *
+   * <p>
+   * Each waiting thread has a slot in a Fenwick tree of effective ticket counts,
+   * so that adding, removing or changing the tickets of a thread, and finding
+   * the holder of a winning ticket, take logarithmic time. Counts and sums are
+   * kept in 64 bits, since donations can take them past the range of an
+   * <tt>int</tt>. If the queue transfers tickets, its holder is given the sum
+   * of the waiters' tickets, and told of each change as it is made.
+   */
+  protected class LotteryQueue extends ThreadQueue {
+    LotteryQueue(boolean transferPriority) {
+      this.transferPriority = transferPriority;
+    }
+
+    public void waitForAccess(KThread thread) {
+      Lib.assertTrue(Machine.interrupt().disabled());
+      getLotteryState(thread).waitForAccess(this);
+    }
+
+    public void acquire(KThread thread) {
+      Lib.assertTrue(Machine.interrupt().disabled());
+      getLotteryState(thread).acquire(this);
+    }
+
+    public KThread nextThread() {
+      Lib.assertTrue(Machine.interrupt().disabled());
+      setHolder(null);
+      KThread firstThread = pickNextThread();
+      if (firstThread != null) {
+        getLotteryState(firstThread).acquire(this);
+      }
+      return firstThread;
+    }
+
+    /**
+     * Hold a lottery among the waiting threads, without modifying the state of
+     * this queue.
+     *
+     * @return the thread holding the winning ticket, or <tt>null</tt> if no
+     *         thread is waiting.
+     */
+    protected KThread pickNextThread() {
+      if (numWaiting == 0) {
+        return null;
+      }
+
+      // descend the tree to the first slot whose prefix sum passes the ticket
+      long ticket = Lib.random(totalTickets);
+      int index = 0;
+      for (int step = Integer.highestOneBit(capacity); step > 0; step >>= 1) {
+        if (index + step <= capacity && tree[index + step] <= ticket) {
+          index += step;
+          ticket -= tree[index];
+        }
+      }
+      return slots[index].thread;
+    }
+
+    public void print() {
+      Lib.assertTrue(Machine.interrupt().disabled());
+      for (int slot = 0; slot < capacity; slot++) {
+        if (slots[slot] != null) {
+          System.out.print("Thread: " + slots[slot].thread + "\t  Tickets: " + slots[slot].effectiveTickets + "\n");
+        }
+      }
+    }
+
+    /**
+     * Give a thread a slot, with its effective tickets.
+     */
+    private void add(LotteryState state) {
+      if (numFree == 0) {
+        grow();
+      }
+      state.slot = free[--numFree];
+      slots[state.slot] = state;
+      numWaiting++;
+      change(state.slot, state.effectiveTickets);
+    }
+
+    /**
+     * Free the slot of a thread that has stopped waiting.
+     */
+    private void remove(LotteryState state) {
+      change(state.slot, -state.effectiveTickets);
+      slots[state.slot] = null;
+      free[numFree++] = state.slot;
+      numWaiting--;
+      state.slot = -1;
+    }
+
+    /**
+     * Add <i>delta</i> tickets to a slot, and to the tickets donated to the
+     * holder.
+     */
+    private void change(int slot, long delta) {
+      for (int index = slot + 1; index <= capacity; index += index & -index) {
+        tree[index] += delta;
+      }
+      totalTickets += delta;
+
+      if (transferPriority && holder != null) {
+        holder.changeDonated(delta);
+      }
+    }
+
+    /**
+     * Double the number of slots, rebuilding the tree in linear time.
+     */
+    private void grow() {
+      int newCapacity = Math.max(4, capacity * 2);
+
+      LotteryState[] newSlots = new LotteryState[newCapacity];
+      System.arraycopy(slots, 0, newSlots, 0, capacity);
+
+      long[] newTree = new long[newCapacity + 1];
+      for (int index = 1; index <= newCapacity; index++) {
+        if (newSlots[index - 1] != null) {
+          newTree[index] += newSlots[index - 1].effectiveTickets;
+        }
+        int parent = index + (index & -index);
+        if (parent <= newCapacity) {
+          newTree[parent] += newTree[index];
+        }
+      }
+
+      // hand out the lowest new slots first
+      int[] newFree = new int[newCapacity];
+      for (int slot = newCapacity - 1; slot >= capacity; slot--) {
+        newFree[numFree++] = slot;
+      }
+
+      slots = newSlots;
+      tree = newTree;
+      free = newFree;
+      capacity = newCapacity;
+    }
+
+    /**
+     * Give this queue to a new holder, moving the donated tickets from the old
+     * holder to the new one. Only queues that transfer tickets keep a holder.
+     */
+    private void setHolder(LotteryState state) {
+      if (!transferPriority || holder == state) {
+        return;
+      }
+      if (holder != null) {
+        holder.changeDonated(-totalTickets);
+      }
+      holder = state;
+      if (holder != null) {
+        holder.changeDonated(totalTickets);
+      }
+    }
+
+    public boolean transferPriority;
+    private int capacity = 0;
+    /** The waiting thread in each slot, or <tt>null</tt> if it is free. */
+    private LotteryState[] slots = new LotteryState[0];
+    /** The Fenwick tree over the slots' tickets, indexed from 1. */
+    private long[] tree = new long[1];
+    private int[] free = new int[0];
+    private int numFree = 0;
+    private int numWaiting = 0;
+    private long totalTickets = 0;
+    private LotteryState holder = null;
+  }
+
+  /**
+   * The lottery state of a thread: its own tickets, the tickets donated to it
+   * through the queues it holds, and the queue it is waiting on, if any.
+   *
+   * @see nachos.threads.KThread#schedulingState
+   */
+  protected class LotteryState {
+    /**
+     * Allocate a new <tt>LotteryState</tt> object and associate it with the
+     * specified thread.
+     *
+     * @param thread the thread this state belongs to.
+     */
+    public LotteryState(KThread thread) {
+      this.thread = thread;
+      this.tickets = priorityDefault;
+      this.effectiveTickets = priorityDefault;
+    }
+
+    /**
+     * Set the thread's own tickets.
+     *
+     * @param tickets the new number of tickets.
+     */
+    public void setTickets(int tickets) {
+      long delta = (long) tickets - this.tickets;
+      this.tickets = tickets;
+      changeEffective(delta);
+    }
+
+    /**
+     * Called when the associated thread starts waiting on a queue.
+     *
+     * @param waitQueue the queue that the associated thread is now waiting on.
+     *
+     * @see nachos.threads.ThreadQueue#waitForAccess
+     */
+    public void waitForAccess(LotteryQueue waitQueue) {
+      Lib.assertTrue(Machine.interrupt().disabled());
+      Lib.assertTrue(waitingOn == null);
+      if (waitQueue.holder == this) {
+        waitQueue.setHolder(null);
+      }
+      waitingOn = waitQueue;
+      waitQueue.add(this);
+    }
+
+    /**
+     * Called when the associated thread has acquired access to whatever is
+     * guarded by a queue.
+     *
+     * @see nachos.threads.ThreadQueue#acquire
+     * @see nachos.threads.ThreadQueue#nextThread
+     */
+    public void acquire(LotteryQueue waitQueue) {
+      Lib.assertTrue(Machine.interrupt().disabled());
+      if (waitingOn == waitQueue) {
+        waitQueue.remove(this);
+        waitingOn = null;
+      }
+      waitQueue.setHolder(this);
+    }
+
+    private void changeDonated(long delta) {
+      donatedTickets += delta;
+      changeEffective(delta);
+    }
+
+    /**
+     * Change the effective tickets, and pass the change on to the queue this
+     * thread is waiting on, and so up the chain of holders.
+     */
+    private void changeEffective(long delta) {
+      if (delta == 0) {
+        return;
+      }
+      effectiveTickets += delta;
+      if (waitingOn != null) {
+        waitingOn.change(slot, delta);
+      }
+    }
+
+    protected KThread thread;
+    protected int tickets;
+    /** The sum of the tickets of the queues this thread holds. */
+    protected long donatedTickets = 0;
+    protected long effectiveTickets;
+    protected LotteryQueue waitingOn = null;
+    /** The slot of this thread in <tt>waitingOn</tt>. */
+    private int slot = -1;
+  }
+}
@@ -0,0 +1,322 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.LinkedList;
+
+/**
+ * A multi-level feedback queue scheduler.
+ *
+ * <p>
+ * Threads are kept at one of several levels, and the next thread dequeued is
+ * always one at the highest level, the one that has waited longest among
+ * them. New threads start at the highest level. The scheduler charges each
+ * thread for the ticks it runs, measured with <tt>Machine.timer()</tt>, from
+ * when it is dequeued until it next waits on a queue. A thread that uses up
+ * the quantum of its level is moved down a level, where the quantum is twice
+ * as long, so CPU-bound threads sink. The timer interrupt only preempts a
+ * thread once it has used up the quantum of its level, or when a thread at a
+ * higher level is waiting, so threads at lower levels also run longer between
+ * context switches.
+ *
+ * <p>
+ * A thread that is woken by another thread, rather than giving up the
+ * processor itself, has been blocked, for example on the console or the file
+ * system. It is moved up a level, so that threads that mostly wait for I/O
+ * stay near the top and respond quickly.
+ *
+ * <p>
+ * To keep threads at the lowest level from starving, every
+ * <tt>boostInterval</tt> ticks every thread is moved back to the highest
+ * level.
+ *
+ * <p>
+ * This scheduler has no priorities to set, and does not transfer priority.
+ */
+public class MLFQScheduler extends Scheduler {
+  /**
+   * Allocate a new multi-level feedback queue scheduler.
+   */
+  public MLFQScheduler() {
+    numLevels = Config.getInteger("MLFQScheduler.numLevels", 4);
+    quantum = Config.getInteger("MLFQScheduler.quantum", 1000);
+    boostInterval = Config.getInteger("MLFQScheduler.boostInterval", 50000);
+
+    Lib.assertTrue(numLevels > 0 && numLevels <= 32 && quantum > 0 && boostInterval > 0);
+  }
+
+  /**
+   * Allocate a new multi-level feedback thread queue.
+   *
+   * @param transferPriority ignored. This scheduler does not transfer priority.
+   * @return a new thread queue.
+   */
+  public ThreadQueue newThreadQueue(boolean transferPriority) {
+    return new FeedbackQueue();
+  }
+
+  /**
+   * Return how high a thread currently stands, from <tt>numLevels - 1</tt> at
+   * the highest level to 0 at the lowest.
+   */
+  public int getEffectivePriority(KThread thread) {
+    Lib.assertTrue(Machine.interrupt().disabled());
+    return numLevels - 1 - getThreadState(thread).level;
+  }
+
+  /**
+   * Preempt the current thread only if it has used up the quantum of its level,
+   * or if a thread at a higher level is waiting for the processor.
+   */
+  public boolean shouldPreempt() {
+    Lib.assertTrue(Machine.interrupt().disabled());
+    ThreadState state = getThreadState(KThread.currentThread());
+    if (state.runningSince < 0 || state.dispatchedBy == null) {
+      return true;
+    }
+
+    // looking at the next thread applies any periodic boost that is due
+    FeedbackQueue queue = state.dispatchedBy;
+    if (queue.pickNextThread() == null) {
+      return false;
+    }
+    long ran = Machine.timer().getTime() - state.runningSince;
+    return state.used + ran >= state.getQuantum() || (queue.levels & ((1 << state.level) - 1)) != 0;
+  }
+
+  /**
+   * Return the scheduling state of the specified thread.
+   *
+   * @param thread the thread whose scheduling state to return.
+   * @return the scheduling state of the specified thread.
+   */
+  protected ThreadState getThreadState(KThread thread) {
+    if (thread.schedulingState == null) {
+      thread.schedulingState = new ThreadState(thread);
+    }
+    return (ThreadState) thread.schedulingState;
+  }
+
+  /**
+   * Return the number of periodic boosts that have come due.
+   */
+  private long getBoosts() {
+    return Machine.timer().getTime() / boostInterval;
+  }
+
+  /**
+   * A <tt>ThreadQueue</tt> with a FIFO list of waiting threads for each level,
+   * and a bitmap of the levels that are not empty.
+   */
+  protected class FeedbackQueue extends ThreadQueue {
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    FeedbackQueue() {
+      waiting = new LinkedList[numLevels];
+      for (int level = 0; level < numLevels; level++) {
+        waiting[level] = new LinkedList<ThreadState>();
+      }
+    }
+
+    public void waitForAccess(KThread thread) {
+      Lib.assertTrue(Machine.interrupt().disabled());
+      ThreadState state = getThreadState(thread);
+
+      // a thread stopping itself has been running; any other was blocked
+      if (thread == KThread.currentThread()) {
+        state.charge();
+      } else {
+        state.runningSince = -1;
+        state.dispatchedBy = null;
+        state.checkBoost();
+        state.promote();
+      }
+
+      add(state);
+    }
+
+    public void acquire(KThread thread) {
+      Lib.assertTrue(Machine.interrupt().disabled());
+      ThreadState state = getThreadState(thread);
+      if (state.waitingOn == this) {
+        remove(state);
+      }
+    }
+
+    /**
+     * Dequeue the next thread and start charging it. Only a thread dequeued
+     * from the ready queue runs straight away; one dequeued from any other
+     * queue is made ready, and starts over when the ready queue dequeues it.
+     */
+    public KThread nextThread() {
+      Lib.assertTrue(Machine.interrupt().disabled());
+      KThread firstThread = pickNextThread();
+      if (firstThread != null) {
+        acquire(firstThread);
+        getThreadState(firstThread).dispatch(this);
+      }
+      return firstThread;
+    }
+
+    /**
+     * Return the next thread that <tt>nextThread()</tt> would return, applying
+     * any periodic boost that has come due since this queue last looked.
+     *
+     * @return the next thread that <tt>nextThread()</tt> would return.
+     */
+    protected KThread pickNextThread() {
+      long boosts = getBoosts();
+      if (boosts != this.boosts) {
+        this.boosts = boosts;
+        for (int level = 1; level < numLevels; level++) {
+          for (ThreadState state : waiting[level]) {
+            state.boost(boosts);
+            state.queuedLevel = 0;
+            waiting[0].add(state);
+          }
+          waiting[level].clear();
+        }
+        levels = waiting[0].isEmpty() ? 0 : 1;
+      }
+
+      if (levels == 0) {
+        return null;
+      }
+      return waiting[Integer.numberOfTrailingZeros(levels)].getFirst().thread;
+    }
+
+    public void print() {
+      Lib.assertTrue(Machine.interrupt().disabled());
+      for (int level = 0; level < numLevels; level++) {
+        for (ThreadState state : waiting[level]) {
+          System.out.print("Thread: " + state.thread + "\t  Level: " + level + "\n");
+        }
+      }
+    }
+
+    private void add(ThreadState state) {
+      Lib.assertTrue(state.waitingOn == null);
+      state.waitingOn = this;
+      state.queuedLevel = state.level;
+      waiting[state.level].add(state);
+      levels |= 1 << state.level;
+    }
+
+    private void remove(ThreadState state) {
+      int level = state.queuedLevel;
+      if (waiting[level].getFirst() == state) {
+        waiting[level].removeFirst();
+      } else {
+        waiting[level].remove(state);
+      }
+      if (waiting[level].isEmpty()) {
+        levels &= ~(1 << level);
+      }
+      state.waitingOn = null;
+    }
+
+    private LinkedList<ThreadState>[] waiting;
+    /** Bit <i>i</i> is set if level <i>i</i> has a waiting thread. */
+    private int levels = 0;
+    /** The number of periodic boosts this queue has applied. */
+    private long boosts = 0;
+  }
+
+  /**
+   * The scheduling state of a thread: its level, and the ticks it has run
+   * since it reached that level.
+   *
+   * @see nachos.threads.KThread#schedulingState
+   */
+  protected class ThreadState {
+    /**
+     * Allocate a new <tt>ThreadState</tt> object and associate it with the
+     * specified thread.
+     *
+     * @param thread the thread this state belongs to.
+     */
+    public ThreadState(KThread thread) {
+      this.thread = thread;
+      this.boosts = getBoosts();
+    }
+
+    /**
+     * Called when the associated thread is dequeued. If it is about to run,
+     * this is when it starts.
+     */
+    void dispatch(FeedbackQueue queue) {
+      runningSince = Machine.timer().getTime();
+      dispatchedBy = queue;
+    }
+
+    /**
+     * Called when the associated thread stops running. Charge it for the ticks
+     * it has run, moving it down a level for each quantum it has used up.
+     */
+    void charge() {
+      if (runningSince >= 0) {
+        used += Machine.timer().getTime() - runningSince;
+        runningSince = -1;
+      }
+      dispatchedBy = null;
+
+      while (used >= getQuantum() && level < numLevels - 1) {
+        used -= getQuantum();
+        level++;
+      }
+      // a thread at the lowest level has nowhere further to go
+      if (level == numLevels - 1) {
+        used = 0;
+      }
+
+      checkBoost();
+    }
+
+    /**
+     * Move the associated thread up a level, since it blocked.
+     */
+    void promote() {
+      if (level > 0) {
+        level--;
+      }
+      used = 0;
+    }
+
+    /**
+     * Move the associated thread to the highest level if a periodic boost has
+     * come due since it was last checked.
+     */
+    void checkBoost() {
+      long boosts = getBoosts();
+      if (boosts != this.boosts) {
+        boost(boosts);
+      }
+    }
+
+    void boost(long boosts) {
+      this.boosts = boosts;
+      level = 0;
+      used = 0;
+    }
+
+    private long getQuantum() {
+      return (long) quantum << level;
+    }
+
+    protected KThread thread;
+    protected int level = 0;
+    /** The ticks the thread has run at its current level. */
+    protected long used = 0;
+    /** When the thread last started running, or -1 if it is not running. */
+    protected long runningSince = -1;
+    protected FeedbackQueue waitingOn = null;
+    /** The queue that last dequeued the thread. */
+    private FeedbackQueue dispatchedBy = null;
+    /** The level of the list in <tt>waitingOn</tt> the thread is on. */
+    private int queuedLevel;
+    private long boosts;
+  }
+
+  private int numLevels;
+  private int quantum;
+  private int boostInterval;
+}
@@ -2,11 +2,6 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.LinkedList;
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
-
 /**
  * A scheduler that chooses threads based on their priorities.
  *
@@ -66,6 +61,7 @@ public class PriorityScheduler extends Scheduler {
 		KThread thread = KThread.currentThread();
 		int priority = getPriority(thread);
 		if (priority == priorityMaximum) {
+			Machine.interrupt().restore(intStatus);
 			return false;
 		}
 		setPriority(thread, priority + 1);
@@ -78,6 +74,7 @@ public class PriorityScheduler extends Scheduler {
 		KThread thread = KThread.currentThread();
 		int priority = getPriority(thread);
 		if (priority == priorityMinimum) {
+			Machine.interrupt().restore(intStatus);
 			return false;
 		}
 		setPriority(thread, priority - 1);
@@ -112,7 +109,21 @@ public class PriorityScheduler extends Scheduler {
 	}
 
 	/**
-	 * A <tt>ThreadQueue</tt> that sorts threads by priority.
+	 * Return the highest level set in a bitmap of levels.
+	 *
+	 * @param levels a bitmap with bit <i>i</i> set if level <i>i</i> is present.
+	 * @return the highest level present, or -1 if there is none.
+	 */
+	private static int highestLevel(int levels) {
+		return 31 - Integer.numberOfLeadingZeros(levels);
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> that sorts threads by priority. Waiting threads are
+	 * kept in one FIFO bucket per effective priority, with a bitmap of the
+	 * buckets that are not empty, so that every operation takes constant time.
+	 * The priority a queue donates to its holder is the highest non-empty
+	 * bucket, and the holder is only told when that changes.
 	 */
 	protected class PriorityQueue extends ThreadQueue {
 		PriorityQueue(boolean transferPriority) {
@@ -126,25 +137,14 @@ public class PriorityScheduler extends Scheduler {
 
 		public void acquire(KThread thread) {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			ThreadState state = getThreadState(thread);
-			if (this.holder != null && this.transferPriority) {
-				this.holder.myResource.remove(this);
-			}
-			this.holder = state;
-			state.acquire(this);
+			getThreadState(thread).acquire(this);
 		}
 
 		public KThread nextThread() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			if (waitQueue.isEmpty()) {
-				return null;
-			}
-			if (this.holder != null && this.transferPriority) {
-				this.holder.myResource.remove(this);
-			}
+			setHolder(null);
 			KThread firstThread = pickNextThread();
 			if (firstThread != null) {
-				waitQueue.remove(firstThread);
 				getThreadState(firstThread).acquire(this);
 			}
 			return firstThread;
@@ -157,59 +157,109 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the next thread that <tt>nextThread()</tt> would return.
 		 */
 		protected KThread pickNextThread() {
-			KThread nextThread = null;
-			for (Iterator<KThread> ts = waitQueue.iterator(); ts.hasNext();) {
-				KThread thread = ts.next();
-				int priority = getThreadState(thread).getEffectivePriority();
-				if (nextThread == null || priority > getThreadState(nextThread).getEffectivePriority()) {
-					nextThread = thread;
-				}
+			if (levels == 0) {
+				return null;
 			}
-			return nextThread;
+			return first[highestLevel(levels)].thread;
 		}
 
+		/**
+		 * Return the priority this queue donates to its holder.
+		 *
+		 * @return the highest effective priority of a waiting thread, or
+		 *         <tt>priorityMinimum</tt> if this queue does not transfer
+		 *         priority or no thread is waiting.
+		 */
 		public int getEffectivePriority() {
-			if (transferPriority == false) {
-				return priorityMinimum;
-			}
-			if (dirty) {
-				effectivePriority = priorityMinimum;
-				for (Iterator<KThread> it = waitQueue.iterator(); it.hasNext();) {
-					KThread thread = it.next();
-					int priority = getThreadState(thread).getEffectivePriority();
-					if (priority > effectivePriority) {
-						effectivePriority = priority;
-					}
+			return Math.max(donation, priorityMinimum);
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			for (int level = priorityMaximum; level >= priorityMinimum; level--) {
+				for (ThreadState state = first[level]; state != null; state = state.nextWaiter) {
+					System.out.print("Thread: " + state.thread + "\t  Priority: " + state.getPriority() + "\n");
 				}
-				dirty = false;
 			}
-			return effectivePriority;
 		}
 
-		public void setDirty() {
-			if (transferPriority == false) {
+		/**
+		 * Append a thread to the bucket for its effective priority.
+		 */
+		private void add(ThreadState state) {
+			int level = state.effectivePriority;
+			state.prevWaiter = last[level];
+			state.nextWaiter = null;
+			if (last[level] == null) {
+				first[level] = state;
+				levels |= 1 << level;
+			} else {
+				last[level].nextWaiter = state;
+			}
+			last[level] = state;
+		}
+
+		/**
+		 * Unlink a thread from the bucket for the specified priority.
+		 */
+		private void remove(ThreadState state, int level) {
+			if (state.prevWaiter == null) {
+				first[level] = state.nextWaiter;
+			} else {
+				state.prevWaiter.nextWaiter = state.nextWaiter;
+			}
+			if (state.nextWaiter == null) {
+				last[level] = state.prevWaiter;
+			} else {
+				state.nextWaiter.prevWaiter = state.prevWaiter;
+			}
+			state.prevWaiter = state.nextWaiter = null;
+			if (first[level] == null) {
+				levels &= ~(1 << level);
+			}
+		}
+
+		/**
+		 * Give this queue to a new holder, moving its donation from the old holder
+		 * to the new one. Only queues that transfer priority keep a holder.
+		 */
+		private void setHolder(ThreadState state) {
+			if (!transferPriority || holder == state) {
 				return;
 			}
-			dirty = true;
 			if (holder != null) {
-				holder.setDirty();
+				holder.changeDonation(donation, -1);
+			}
+			holder = state;
+			if (holder != null) {
+				holder.changeDonation(-1, donation);
 			}
 		}
 
-		public void print() {
-			Lib.assertTrue(Machine.interrupt().disabled());
-			for (Iterator<KThread> it = waitQueue.iterator(); it.hasNext();) {
-				KThread currentThread = it.next();
-				int priority = getThreadState(currentThread).getPriority();
-				System.out.print("Thread: " + currentThread + "\t  Priority: " + priority + "\n");
+		/**
+		 * Recompute the priority this queue donates, and pass a change on to the
+		 * holder.
+		 */
+		private void updateDonation() {
+			int newDonation = transferPriority ? highestLevel(levels) : -1;
+			if (newDonation == donation) {
+				return;
+			}
+			int oldDonation = donation;
+			donation = newDonation;
+			if (holder != null) {
+				holder.changeDonation(oldDonation, newDonation);
 			}
 		}
 
 		public boolean transferPriority;
-		private LinkedList<KThread> waitQueue = new LinkedList<KThread>();
+		private ThreadState[] first = new ThreadState[priorityMaximum + 1];
+		private ThreadState[] last = new ThreadState[priorityMaximum + 1];
+		/** Bit <i>i</i> is set if the bucket for priority <i>i</i> is not empty. */
+		private int levels = 0;
 		private ThreadState holder = null;
-		private boolean dirty;
-		private int effectivePriority;
+		/** The priority donated to the holder, or -1 if none. */
+		private int donation = -1;
 	}
 
 	/**
@@ -217,6 +267,12 @@ public class PriorityScheduler extends Scheduler {
 	 * its effective priority, any objects it owns, and the queue it's waiting for,
 	 * if any.
 	 *
+	 * <p>
+	 * The effective priority is kept up to date as donations change, rather than
+	 * recomputed from the queues the thread holds. For each priority, the state
+	 * counts the held queues donating it, and a bitmap marks the priorities with
+	 * a non-zero count.
+	 *
 	 * @see nachos.threads.KThread#schedulingState
 	 */
 	protected class ThreadState {
@@ -229,7 +285,8 @@ public class PriorityScheduler extends Scheduler {
 		 */
 		public ThreadState(KThread thread) {
 			this.thread = thread;
-			setPriority(priorityDefault);
+			this.priority = priorityDefault;
+			this.effectivePriority = priorityDefault;
 		}
 
 		/**
@@ -247,17 +304,7 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the effective priority of the associated thread.
 		 */
 		public int getEffectivePriority() {
-			int maxEffective = this.priority;
-			if (dirty) {
-				for (Iterator<ThreadQueue> it = myResource.iterator(); it.hasNext();) {
-					PriorityQueue pg = (PriorityQueue) (it.next());
-					int effective = pg.getEffectivePriority();
-					if (maxEffective < effective) {
-						maxEffective = effective;
-					}
-				}
-			}
-			return maxEffective;
+			return effectivePriority;
 		}
 
 		/**
@@ -269,7 +316,7 @@ public class PriorityScheduler extends Scheduler {
 			if (this.priority == priority)
 				return;
 			this.priority = priority;
-			setDirty();
+			updateEffectivePriority();
 		}
 
 		/**
@@ -285,14 +332,13 @@ public class PriorityScheduler extends Scheduler {
 		 */
 		public void waitForAccess(PriorityQueue waitQueue) {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			Lib.assertTrue(waitQueue.waitQueue.indexOf(thread) == -1);
-			waitQueue.waitQueue.add(thread);
-			waitQueue.setDirty();
-			waitingOn = waitQueue;
-			if (myResource.indexOf(waitQueue) != -1) {
-				myResource.remove(waitQueue);
-				waitQueue.holder = null;
+			Lib.assertTrue(waitingOn == null);
+			if (waitQueue.holder == this) {
+				waitQueue.setHolder(null);
 			}
+			waitingOn = waitQueue;
+			waitQueue.add(this);
+			waitQueue.updateDonation();
 		}
 
 		/**
@@ -307,38 +353,56 @@ public class PriorityScheduler extends Scheduler {
 		 */
 		public void acquire(PriorityQueue waitQueue) {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			myResource.add(waitQueue);
-			if (waitQueue == waitingOn) {
+			if (waitingOn == waitQueue) {
+				waitQueue.remove(this, effectivePriority);
 				waitingOn = null;
+				waitQueue.updateDonation();
 			}
-			setDirty();
+			waitQueue.setHolder(this);
 		}
 
 		/**
-		 * ThreadState.setDirty Set the dirty flag, then call setdirty() on each thread
-		 * of priority queue that the thread is waiting for.
-		 *
-		 * ThreadState.setDirty and PriorityQueue.setDirty would invoke each other, they
-		 * are mutually recursive.
-		 *
+		 * Move a donation from one priority to another, when a queue this thread
+		 * holds changes what it donates. A priority of -1 means no donation.
 		 */
-		public void setDirty() {
-			if (dirty) {
-				return;
+		private void changeDonation(int oldDonation, int newDonation) {
+			if (oldDonation >= 0 && --donations[oldDonation] == 0) {
+				donated &= ~(1 << oldDonation);
 			}
-			dirty = true;
-			PriorityQueue pg = (PriorityQueue) waitingOn;
-			if (pg != null) {
-				pg.setDirty();
+			if (newDonation >= 0 && donations[newDonation]++ == 0) {
+				donated |= 1 << newDonation;
 			}
+			updateEffectivePriority();
+		}
 
+		/**
+		 * Recompute the effective priority. If it has changed, move this thread to
+		 * its new bucket in the queue it is waiting on, which passes the change on
+		 * to that queue's holder if the queue's donation changes too.
+		 */
+		private void updateEffectivePriority() {
+			int newEffective = Math.max(priority, highestLevel(donated));
+			if (newEffective == effectivePriority) {
+				return;
+			}
+			int oldEffective = effectivePriority;
+			effectivePriority = newEffective;
+			if (waitingOn != null) {
+				waitingOn.remove(this, oldEffective);
+				waitingOn.add(this);
+				waitingOn.updateDonation();
+			}
 		}
 
 		protected KThread thread;
 		protected int priority;
 		protected int effectivePriority;
-		protected LinkedList<ThreadQueue> myResource = new LinkedList<ThreadQueue>();
-		protected ThreadQueue waitingOn;
-		private boolean dirty = false;
+		protected PriorityQueue waitingOn;
+		/** The number of held queues donating each priority. */
+		private int[] donations = new int[priorityMaximum + 1];
+		/** Bit <i>i</i> is set if <tt>donations[i]</tt> is not zero. */
+		private int donated = 0;
+		/** The neighbours of this thread in its bucket of <tt>waitingOn</tt>. */
+		private ThreadState prevWaiter, nextWaiter;
 	}
-}
\ No newline at end of file
+}
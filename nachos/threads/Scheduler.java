@@ -151,4 +151,16 @@ public abstract class Scheduler {
   public boolean decreasePriority() {
     return false;
   }
+
+  /**
+   * Decide whether the timer interrupt should make the current thread yield.
+   * Must be called with interrupts disabled.
+   *
+   * @return <tt>true</tt> if the current thread should yield. By default, the
+   *         current thread yields on every timer interrupt.
+   */
+  public boolean shouldPreempt() {
+    Lib.assertTrue(Machine.interrupt().disabled());
+    return true;
+  }
 }
@@ -0,0 +1,397 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.WeakHashMap;
+
+/**
+ * A scheduler that chooses threads by stride scheduling.
+ *
+ * <p>
+ * Like a lottery scheduler, a stride scheduler associates a number of tickets
+ * with each thread, and gives each thread a share of access in proportion to
+ * its tickets. Instead of holding a lottery, each thread has a <i>stride</i>,
+ * inversely proportional to its tickets, and a <i>pass</i>. The next thread to
+ * be dequeued is the one with the lowest pass, and its pass is then advanced
+ * by its stride. Unlike a lottery, this is deterministic, so the error in each
+ * thread's share is bounded by a single dequeue rather than growing with the
+ * square root of the number of dequeues.
+ *
+ * <p>
+ * Each queue keeps its own pass for every thread it has dequeued, so that
+ * waiting on a lock or a join does not use up a thread's share of the
+ * processor. A thread that starts waiting on a queue has its pass raised to
+ * the pass of the last thread dequeued from it, so that it cannot claim access
+ * it missed while it was not waiting.
+ *
+ * <p>
+ * Like a lottery scheduler, a stride scheduler transfers tickets through locks,
+ * and through joins. Donated tickets add to the receiving thread's tickets.
+ */
+public class StrideScheduler extends Scheduler {
+  /**
+   * Allocate a new stride scheduler.
+   */
+  public StrideScheduler() {
+  }
+
+  /**
+   * Allocate a new stride thread queue.
+   *
+   * @param transferPriority <tt>true</tt> if this queue should transfer tickets
+   *                         from waiting threads to the owning thread.
+   * @return a new stride thread queue.
+   */
+  public ThreadQueue newThreadQueue(boolean transferPriority) {
+    return new StrideQueue(transferPriority);
+  }
+
+  public int getPriority(KThread thread) {
+    Lib.assertTrue(Machine.interrupt().disabled());
+    return getThreadState(thread).tickets;
+  }
+
+  /**
+   * Return the tickets a thread holds, including the tickets donated to it,
+   * clamped to the range of an <tt>int</tt>.
+   */
+  public int getEffectivePriority(KThread thread) {
+    Lib.assertTrue(Machine.interrupt().disabled());
+    return (int) Math.min(getThreadState(thread).effectiveTickets, Integer.MAX_VALUE);
+  }
+
+  public void setPriority(KThread thread, int priority) {
+    Lib.assertTrue(Machine.interrupt().disabled());
+    Lib.assertTrue(priority >= priorityMinimum && priority <= priorityMaximum);
+    getThreadState(thread).setTickets(priority);
+  }
+
+  public boolean increasePriority() {
+    boolean intStatus = Machine.interrupt().disable();
+    KThread thread = KThread.currentThread();
+    int priority = getPriority(thread);
+    if (priority == priorityMaximum) {
+      Machine.interrupt().restore(intStatus);
+      return false;
+    }
+    setPriority(thread, priority + 1);
+    Machine.interrupt().restore(intStatus);
+    return true;
+  }
+
+  public boolean decreasePriority() {
+    boolean intStatus = Machine.interrupt().disable();
+    KThread thread = KThread.currentThread();
+    int priority = getPriority(thread);
+    if (priority == priorityMinimum) {
+      Machine.interrupt().restore(intStatus);
+      return false;
+    }
+    setPriority(thread, priority - 1);
+    Machine.interrupt().restore(intStatus);
+    return true;
+  }
+
+  /**
+   * The default number of tickets for a new thread.
+   */
+  public static final int priorityDefault = 1;
+  /**
+   * The fewest tickets a thread can hold.
+   */
+  public static final int priorityMinimum = 1;
+  /**
+   * The most tickets a thread can hold, not counting donations.
+   */
+  public static final int priorityMaximum = Integer.MAX_VALUE;
+
+  /**
+   * The stride of a thread holding a single ticket. A thread's stride is this
+   * divided by its effective tickets.
+   */
+  private static final long stride1 = 1L << 40;
+
+  /**
+   * Return the scheduling state of the specified thread.
+   *
+   * @param thread the thread whose scheduling state to return.
+   * @return the scheduling state of the specified thread.
+   */
+  protected ThreadState getThreadState(KThread thread) {
+    if (thread.schedulingState == null) {
+      thread.schedulingState = new ThreadState(thread);
+    }
+    return (ThreadState) thread.schedulingState;
+  }
+
+  /**
+   * A <tt>ThreadQueue</tt> that dequeues the waiting thread with the lowest
+   * pass. Waiting threads are kept in a binary heap ordered by pass, and then
+   * by the order they started waiting, and each thread records its place in
+   * the heap so that it can be removed from the middle.
+   */
+  protected class StrideQueue extends ThreadQueue {
+    StrideQueue(boolean transferPriority) {
+      this.transferPriority = transferPriority;
+    }
+
+    public void waitForAccess(KThread thread) {
+      Lib.assertTrue(Machine.interrupt().disabled());
+      getThreadState(thread).waitForAccess(this);
+    }
+
+    public void acquire(KThread thread) {
+      Lib.assertTrue(Machine.interrupt().disabled());
+      getThreadState(thread).acquire(this);
+    }
+
+    public KThread nextThread() {
+      Lib.assertTrue(Machine.interrupt().disabled());
+      setHolder(null);
+      KThread firstThread = pickNextThread();
+      if (firstThread != null) {
+        ThreadState state = getThreadState(firstThread);
+        state.acquire(this);
+        pass = state.pass;
+        passes.put(firstThread, state.pass + state.getStride());
+      }
+      return firstThread;
+    }
+
+    /**
+     * Return the next thread that <tt>nextThread()</tt> would return, without
+     * modifying the state of this queue.
+     *
+     * @return the next thread that <tt>nextThread()</tt> would return.
+     */
+    protected KThread pickNextThread() {
+      return (size == 0) ? null : heap[0].thread;
+    }
+
+    public void print() {
+      Lib.assertTrue(Machine.interrupt().disabled());
+      for (int i = 0; i < size; i++) {
+        System.out.print("Thread: " + heap[i].thread + "\t  Pass: " + heap[i].pass + "\n");
+      }
+    }
+
+    private void add(ThreadState state) {
+      if (size == heap.length) {
+        ThreadState[] newHeap = new ThreadState[Math.max(4, heap.length * 2)];
+        System.arraycopy(heap, 0, newHeap, 0, size);
+        heap = newHeap;
+      }
+
+      Long lastPass = passes.remove(state.thread);
+      state.pass = (lastPass == null) ? pass : Math.max(lastPass, pass);
+      state.arrival = nextArrival++;
+      heap[size] = state;
+      state.heapIndex = size++;
+      siftUp(state.heapIndex);
+
+      changeTickets(state.effectiveTickets);
+    }
+
+    private void remove(ThreadState state) {
+      int index = state.heapIndex;
+      size--;
+      if (index != size) {
+        heap[index] = heap[size];
+        heap[index].heapIndex = index;
+        siftDown(index);
+        siftUp(heap[index].heapIndex);
+      }
+      heap[size] = null;
+      state.heapIndex = -1;
+
+      changeTickets(-state.effectiveTickets);
+    }
+
+    private void siftUp(int index) {
+      while (index > 0) {
+        int parent = (index - 1) / 2;
+        if (!before(heap[index], heap[parent])) {
+          break;
+        }
+        swap(index, parent);
+        index = parent;
+      }
+    }
+
+    private void siftDown(int index) {
+      while (true) {
+        int child = 2 * index + 1;
+        if (child >= size) {
+          break;
+        }
+        if (child + 1 < size && before(heap[child + 1], heap[child])) {
+          child++;
+        }
+        if (!before(heap[child], heap[index])) {
+          break;
+        }
+        swap(index, child);
+        index = child;
+      }
+    }
+
+    private boolean before(ThreadState a, ThreadState b) {
+      return (a.pass != b.pass) ? a.pass < b.pass : a.arrival < b.arrival;
+    }
+
+    private void swap(int i, int j) {
+      ThreadState state = heap[i];
+      heap[i] = heap[j];
+      heap[j] = state;
+      heap[i].heapIndex = i;
+      heap[j].heapIndex = j;
+    }
+
+    /**
+     * Add <i>delta</i> to the tickets of the waiting threads, and to the
+     * tickets donated to the holder.
+     */
+    private void changeTickets(long delta) {
+      totalTickets += delta;
+      if (transferPriority && holder != null) {
+        holder.changeDonated(delta);
+      }
+    }
+
+    /**
+     * Give this queue to a new holder, moving the donated tickets from the old
+     * holder to the new one. Only queues that transfer tickets keep a holder.
+     */
+    private void setHolder(ThreadState state) {
+      if (!transferPriority || holder == state) {
+        return;
+      }
+      if (holder != null) {
+        holder.changeDonated(-totalTickets);
+      }
+      holder = state;
+      if (holder != null) {
+        holder.changeDonated(totalTickets);
+      }
+    }
+
+    public boolean transferPriority;
+    private ThreadState[] heap = new ThreadState[0];
+    private int size = 0;
+    /** The pass of the last thread dequeued. */
+    private long pass = 0;
+    /** The next pass on this queue of each thread it has dequeued. */
+    private WeakHashMap<KThread, Long> passes = new WeakHashMap<KThread, Long>();
+    private long nextArrival = 0;
+    private long totalTickets = 0;
+    private ThreadState holder = null;
+  }
+
+  /**
+   * The scheduling state of a thread: its tickets, the tickets donated to it
+   * through the queues it holds, and the queue it is waiting on, if any, with
+   * its pass there.
+   *
+   * @see nachos.threads.KThread#schedulingState
+   */
+  protected class ThreadState {
+    /**
+     * Allocate a new <tt>ThreadState</tt> object and associate it with the
+     * specified thread.
+     *
+     * @param thread the thread this state belongs to.
+     */
+    public ThreadState(KThread thread) {
+      this.thread = thread;
+      this.tickets = priorityDefault;
+      this.effectiveTickets = priorityDefault;
+    }
+
+    /**
+     * Return the amount the pass of the associated thread advances each time
+     * it is dequeued.
+     *
+     * @return the stride of the associated thread.
+     */
+    public long getStride() {
+      return Math.max(1, stride1 / effectiveTickets);
+    }
+
+    /**
+     * Set the thread's own tickets. The new stride takes effect the next time
+     * the thread is dequeued.
+     *
+     * @param tickets the new number of tickets.
+     */
+    public void setTickets(int tickets) {
+      long delta = (long) tickets - this.tickets;
+      this.tickets = tickets;
+      changeEffective(delta);
+    }
+
+    /**
+     * Called when the associated thread starts waiting on a queue.
+     *
+     * @param waitQueue the queue that the associated thread is now waiting on.
+     *
+     * @see nachos.threads.ThreadQueue#waitForAccess
+     */
+    public void waitForAccess(StrideQueue waitQueue) {
+      Lib.assertTrue(Machine.interrupt().disabled());
+      Lib.assertTrue(waitingOn == null);
+      if (waitQueue.holder == this) {
+        waitQueue.setHolder(null);
+      }
+      waitingOn = waitQueue;
+      waitQueue.add(this);
+    }
+
+    /**
+     * Called when the associated thread has acquired access to whatever is
+     * guarded by a queue.
+     *
+     * @see nachos.threads.ThreadQueue#acquire
+     * @see nachos.threads.ThreadQueue#nextThread
+     */
+    public void acquire(StrideQueue waitQueue) {
+      Lib.assertTrue(Machine.interrupt().disabled());
+      if (waitingOn == waitQueue) {
+        waitQueue.remove(this);
+        waitingOn = null;
+      }
+      waitQueue.setHolder(this);
+    }
+
+    private void changeDonated(long delta) {
+      donatedTickets += delta;
+      changeEffective(delta);
+    }
+
+    /**
+     * Change the effective tickets, and pass the change on to the queue this
+     * thread is waiting on, and so up the chain of holders.
+     */
+    private void changeEffective(long delta) {
+      if (delta == 0) {
+        return;
+      }
+      effectiveTickets += delta;
+      if (waitingOn != null) {
+        waitingOn.changeTickets(delta);
+      }
+    }
+
+    protected KThread thread;
+    protected int tickets;
+    /** The sum of the tickets of the queues this thread holds. */
+    protected long donatedTickets = 0;
+    protected long effectiveTickets;
+    /** The pass of this thread on <tt>waitingOn</tt>. */
+    protected long pass = 0;
+    protected StrideQueue waitingOn = null;
+    /** When this thread started waiting on <tt>waitingOn</tt>, to break ties. */
+    private long arrival;
+    /** The place of this thread in the heap of <tt>waitingOn</tt>. */
+    private int heapIndex = -1;
+  }
+}
@@ -0,0 +1,676 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * A block cache between the files user processes open and the file system.
+ * Files are cached in fixed-size blocks, shared by every open of the same file
+ * name, and the least recently used block is replaced when the cache is full.
+ * Writes only dirty the cached blocks. Dirty blocks are written back when they
+ * are replaced, when the last open of their file is closed, and periodically
+ * by a flusher thread, with runs of adjacent blocks written in one request.
+ *
+ * <p>
+ * The cache's lock is not held while a block is read in or written back.
+ * Instead the block is marked busy, and anyone else who needs it waits until
+ * the request completes, so requests for different blocks can be outstanding
+ * at the same time.
+ *
+ * <p>
+ * Every file opened through the cache must also be removed or truncated
+ * through it, so that its cached blocks stay current.
+ */
+public class BufferCache {
+  /**
+   * Allocate a new buffer cache.
+   *
+   * @param fileSystem    the file system to cache.
+   * @param numBlocks     the number of blocks to cache.
+   * @param blockSize     the size of a block, in bytes.
+   * @param flushInterval the most ticks a block may stay dirty before the
+   *                      flusher writes it back.
+   */
+  public BufferCache(FileSystem fileSystem, int numBlocks, int blockSize, long flushInterval) {
+    Lib.assertTrue(numBlocks > 0 && blockSize > 0 && flushInterval > 0);
+
+    this.fileSystem = fileSystem;
+    this.blockSize = blockSize;
+    this.flushInterval = flushInterval;
+
+    data = new byte[numBlocks * blockSize];
+    blocks = new Block[numBlocks];
+    for (int i = 0; i < numBlocks; i++) {
+      blocks[i] = new Block(i);
+      blocks[i].linkAfter(lru);
+    }
+
+    lock = new Lock();
+    dirtied = new Condition2(lock);
+    idle = new Condition2(lock);
+  }
+
+  /**
+   * Open a file through this cache.
+   *
+   * @param name     the name of the file.
+   * @param truncate if <tt>true</tt>, create the file or truncate it to zero
+   *                 length.
+   * @return the open file, or <tt>null</tt> if it could not be opened.
+   */
+  public OpenFile open(String name, boolean truncate) {
+    lock.acquire();
+
+    CachedFile state = files.get(name);
+    if (state != null && truncate) {
+      waitForIdle(state);
+      discard(state);
+    }
+
+    // other opens share the file system's open file, unless it must be
+    // truncated
+    if (state == null || state.file == null || truncate) {
+      OpenFile file = fileSystem.open(name, truncate);
+      if (file == null) {
+        lock.release();
+        return null;
+      }
+
+      if (state == null) {
+        state = new CachedFile(name);
+        files.put(name, state);
+      }
+      if (state.file != null)
+        state.file.close();
+      state.file = file;
+      state.length = file.length();
+    }
+    state.openCount++;
+
+    lock.release();
+
+    return new CacheOpenFile(state);
+  }
+
+  /**
+   * Remove a file, discarding its cached blocks.
+   *
+   * @param name the name of the file.
+   * @return <tt>true</tt> if the file was removed.
+   */
+  public boolean remove(String name) {
+    lock.acquire();
+
+    CachedFile state = files.get(name);
+    if (state != null) {
+      // anyone who still has it open keeps the state to themselves
+      waitForIdle(state);
+      discard(state);
+      files.remove(name);
+    }
+
+    boolean removed = fileSystem.remove(name);
+
+    lock.release();
+
+    return removed;
+  }
+
+  /**
+   * Write back the dirty blocks of a file, so that a reader going straight to
+   * the file system sees what has been written.
+   *
+   * @param name the name of the file.
+   */
+  public void flush(String name) {
+    lock.acquire();
+
+    CachedFile state = files.get(name);
+    if (state != null)
+      flushFile(state);
+
+    lock.release();
+  }
+
+  /**
+   * Write back every dirty block.
+   */
+  public void flush() {
+    lock.acquire();
+
+    // the lock is let go while blocks are written, so the files may change
+    for (CachedFile state : new ArrayList<CachedFile>(files.values())) {
+      flushFile(state);
+      waitForIdle(state);
+    }
+
+    lock.release();
+  }
+
+  /**
+   * The body of the flusher thread. Wait until a block is dirtied, give it
+   * <tt>flushInterval</tt> ticks to be written again, then write back every
+   * dirty block. Never returns.
+   */
+  public void runFlusher() {
+    while (true) {
+      lock.acquire();
+      while (numDirty == 0)
+        dirtied.sleep();
+      lock.release();
+
+      ThreadedKernel.alarm.waitUntil(flushInterval);
+
+      flush();
+    }
+  }
+
+  /**
+   * Read a file through the cache into a list of windows of a buffer, walking
+   * the blocks the read covers once.
+   */
+  private int read(CachedFile state, int pos, byte[] buf, int[] offsets, int[] lengths, int count) {
+    int length = totalLength(lengths, count);
+    if (pos < 0 || length < 0)
+      return -1;
+
+    lock.acquire();
+
+    int amount = Math.max(0, Math.min(length, state.length - pos));
+    if (amount > 0) {
+      int first = pos / blockSize, last = (pos + amount - 1) / blockSize;
+      for (int number = first; number <= last; number++) {
+        if (state.blocks.containsKey(number))
+          Machine.countCacheHit();
+      }
+      fetch(state, first, last);
+    }
+
+    int window = 0, windowDone = 0;
+    for (int done = 0; done < amount;) {
+      Block block = getBlock(state, (pos + done) / blockSize, false);
+      int blockOffset = (pos + done) % blockSize;
+      int inBlock = Math.min(amount - done, blockSize - blockOffset);
+
+      for (int copied = 0; copied < inBlock;) {
+        int chunk = Math.min(inBlock - copied, lengths[window] - windowDone);
+        System.arraycopy(data, block.index * blockSize + blockOffset + copied, buf, offsets[window] + windowDone, chunk);
+        copied += chunk;
+        windowDone += chunk;
+        if (windowDone == lengths[window]) {
+          window++;
+          windowDone = 0;
+        }
+      }
+      done += inBlock;
+    }
+
+    lock.release();
+
+    return amount;
+  }
+
+  /**
+   * Write a file through the cache from a list of windows of a buffer, walking
+   * the blocks the write covers once.
+   */
+  private int write(CachedFile state, int pos, byte[] buf, int[] offsets, int[] lengths, int count) {
+    int length = totalLength(lengths, count);
+    if (pos < 0 || length < 0)
+      return -1;
+
+    lock.acquire();
+
+    int window = 0, windowDone = 0;
+    for (int done = 0; done < length;) {
+      int blockOffset = (pos + done) % blockSize;
+      int inBlock = Math.min(length - done, blockSize - blockOffset);
+
+      // a block the write covers entirely, or that lies past the end of the
+      // file, need not be read first
+      int blockStart = pos + done - blockOffset;
+      boolean overwrite = (inBlock == blockSize || blockStart >= state.length);
+      if (overwrite || state.blocks.containsKey(blockStart / blockSize))
+        Machine.countCacheHit();
+      Block block = getBlock(state, blockStart / blockSize, overwrite);
+
+      for (int copied = 0; copied < inBlock;) {
+        int chunk = Math.min(inBlock - copied, lengths[window] - windowDone);
+        System.arraycopy(buf, offsets[window] + windowDone, data, block.index * blockSize + blockOffset + copied, chunk);
+        copied += chunk;
+        windowDone += chunk;
+        if (windowDone == lengths[window]) {
+          window++;
+          windowDone = 0;
+        }
+      }
+      markDirty(block);
+      done += inBlock;
+    }
+
+    state.length = Math.max(state.length, pos + length);
+
+    lock.release();
+
+    return length;
+  }
+
+  /**
+   * Return the total length of a list of windows, or -1 if any is negative.
+   */
+  private static int totalLength(int[] lengths, int count) {
+    int length = 0;
+    for (int i = 0; i < count; i++) {
+      if (lengths[i] < 0)
+        return -1;
+      length += lengths[i];
+    }
+    return length;
+  }
+
+  private void close(CachedFile state) {
+    lock.acquire();
+
+    Lib.assertTrue(state.openCount > 0);
+    state.openCount--;
+
+    // the clean blocks stay cached for the next open, but the file can only
+    // be closed once nothing is being read from or written to it
+    while (state.openCount == 0 && state.file != null) {
+      if (state.numDirty > 0) {
+        flushFile(state);
+      }
+      else if (state.numBusy > 0) {
+        idle.sleep();
+      }
+      else {
+        state.file.close();
+        state.file = null;
+      }
+    }
+
+    lock.release();
+  }
+
+  /**
+   * Bring the blocks in a range that are not cached in from the file, reading
+   * each run of adjacent missing blocks with a single request. The blocks of a
+   * run are busy while it is read, and the lock is let go, so other blocks of
+   * the range may come and go meanwhile.
+   */
+  private void fetch(CachedFile state, int first, int last) {
+    int maxRun = Math.min(last - first + 1, blocks.length);
+    int[] offsets = new int[maxRun];
+    int[] lengths = new int[maxRun];
+    Block[] run = new Block[maxRun];
+
+    int number = first;
+    while (number <= last) {
+      if (state.blocks.containsKey(number)) {
+        number++;
+        continue;
+      }
+
+      int count = 0;
+      while (number <= last && count < maxRun) {
+        // taking a block can let go of the lock, and someone else may have
+        // brought this block in meanwhile
+        Block block = takeBlock(count == 0);
+        if (block == null)
+          break;
+        if (state.blocks.containsKey(number)) {
+          freeBlock(block);
+          break;
+        }
+
+        // the block counts as busy at once, since taking the next one can let
+        // go of the lock
+        assignBlock(block, state, number);
+        block.busy = true;
+        state.numBusy++;
+        run[count] = block;
+        offsets[count] = block.index * blockSize;
+        lengths[count] = Math.max(0, Math.min(blockSize, state.length - number * blockSize));
+        count++;
+        number++;
+      }
+      if (count == 0)
+        continue;
+
+      Machine.countCacheMisses(count);
+
+      lock.release();
+      int amount = Math.max(0, state.file.read(run[0].number * blockSize, data, offsets, lengths, count));
+      lock.acquire();
+
+      // anything past what the file holds reads as zeros
+      for (int i = 0; i < count; i++) {
+        int got = Math.min(lengths[i], amount);
+        Arrays.fill(data, offsets[i] + got, offsets[i] + blockSize, (byte) 0);
+        amount -= got;
+        run[i].busy = false;
+      }
+      state.numBusy -= count;
+      idle.wakeAll();
+    }
+  }
+
+  /**
+   * Return the cached block holding a block of a file, once it is not busy,
+   * making it the most recently used.
+   *
+   * @param overwrite <tt>true</tt> if the caller will overwrite the block, so
+   *                  that a block not cached need not be read.
+   */
+  private Block getBlock(CachedFile state, int number, boolean overwrite) {
+    while (true) {
+      Block block = state.blocks.get(number);
+
+      if (block != null && block.busy) {
+        idle.sleep();
+        continue;
+      }
+
+      if (block == null && overwrite) {
+        block = takeBlock(true);
+        if (state.blocks.containsKey(number)) {
+          freeBlock(block);
+          continue;
+        }
+        assignBlock(block, state, number);
+        Arrays.fill(data, block.index * blockSize, (block.index + 1) * blockSize, (byte) 0);
+      }
+      else if (block == null) {
+        fetch(state, number, number);
+        continue;
+      }
+
+      block.unlink();
+      block.linkAfter(lru);
+      return block;
+    }
+  }
+
+  /**
+   * Take the least recently used block that is not busy, writing it back first
+   * if it is dirty, and detach it from its file. Writing it back lets go of
+   * the lock.
+   *
+   * @param wait <tt>true</tt> to wait for a block if every block is busy,
+   *             rather than return <tt>null</tt>.
+   */
+  private Block takeBlock(boolean wait) {
+    while (true) {
+      Block block = lru.prev;
+      while (block.busy)
+        block = block.prev;
+
+      if (block == lru) {
+        if (!wait)
+          return null;
+        idle.sleep();
+        continue;
+      }
+
+      if (block.owner != null && block.dirty) {
+        writeBack(block.owner, new Block[] { block }, 1);
+        continue;
+      }
+
+      if (block.owner != null) {
+        block.owner.blocks.remove(block.number);
+        if (block.owner.blocks.isEmpty() && block.owner.openCount == 0 && files.get(block.owner.name) == block.owner)
+          files.remove(block.owner.name);
+        block.owner = null;
+      }
+      return block;
+    }
+  }
+
+  /**
+   * Give a block taken by <tt>takeBlock()</tt> to a block of a file.
+   */
+  private void assignBlock(Block block, CachedFile state, int number) {
+    block.owner = state;
+    block.number = number;
+    state.blocks.put(number, block);
+
+    block.unlink();
+    block.linkAfter(lru);
+  }
+
+  /**
+   * Return a block taken by <tt>takeBlock()</tt> that was not needed after
+   * all. Free blocks are replaced first.
+   */
+  private void freeBlock(Block block) {
+    block.unlink();
+    block.linkAfter(lru.prev);
+  }
+
+  /**
+   * Wait until none of the blocks of a file are busy.
+   */
+  private void waitForIdle(CachedFile state) {
+    while (state.numBusy > 0)
+      idle.sleep();
+  }
+
+  /**
+   * Write back the dirty blocks of a file, in runs of adjacent blocks.
+   */
+  private void flushFile(CachedFile state) {
+    if (state.numDirty == 0 || state.file == null)
+      return;
+
+    int lastNumber = -1;
+    for (Block block : state.blocks.values())
+      lastNumber = Math.max(lastNumber, block.number);
+
+    // each write lets go of the lock, so look the blocks up as we go
+    Block[] run = new Block[lastNumber + 1];
+    int count = 0;
+    for (int number = 0; number <= lastNumber; number++) {
+      Block block = state.blocks.get(number);
+      if (block != null && block.dirty && !block.busy) {
+        run[count++] = block;
+        if (number < lastNumber)
+          continue;
+      }
+      if (count > 0 && state.file != null)
+        writeBack(state, run, count);
+      count = 0;
+    }
+  }
+
+  /**
+   * Write adjacent dirty blocks of a file with a single request. The blocks
+   * are busy while they are written, and the lock is let go.
+   */
+  private void writeBack(CachedFile state, Block[] run, int count) {
+    int[] offsets = new int[count];
+    int[] lengths = new int[count];
+    int numWindows = 0;
+    for (int i = 0; i < count; i++) {
+      int length = Math.min(blockSize, state.length - run[i].number * blockSize);
+      if (length > 0) {
+        offsets[numWindows] = run[i].index * blockSize;
+        lengths[numWindows] = length;
+        numWindows++;
+      }
+
+      run[i].dirty = false;
+      run[i].busy = true;
+      state.numDirty--;
+      numDirty--;
+    }
+    state.numBusy += count;
+
+    if (numWindows > 0) {
+      Machine.countCacheWriteBacks(count);
+
+      lock.release();
+      state.file.write(run[0].number * blockSize, data, offsets, lengths, numWindows);
+      lock.acquire();
+    }
+
+    for (int i = 0; i < count; i++)
+      run[i].busy = false;
+    state.numBusy -= count;
+    idle.wakeAll();
+  }
+
+  private void markDirty(Block block) {
+    if (block.dirty)
+      return;
+
+    block.dirty = true;
+    block.owner.numDirty++;
+    if (numDirty++ == 0)
+      dirtied.wake();
+  }
+
+  /**
+   * Drop every cached block of a file, dirty or not, since it is being removed
+   * or truncated.
+   */
+  private void discard(CachedFile state) {
+    for (Block block : state.blocks.values()) {
+      if (block.dirty)
+        numDirty--;
+      block.dirty = false;
+      block.owner = null;
+
+      // free blocks are replaced first
+      block.unlink();
+      block.linkAfter(lru.prev);
+    }
+    state.blocks.clear();
+    state.numDirty = 0;
+  }
+
+  /**
+   * The state the cache keeps for a file name, shared by every open of it.
+   */
+  private static class CachedFile {
+    CachedFile(String name) {
+      this.name = name;
+    }
+
+    String name;
+    /** The file system's open file, or <tt>null</tt> if no one has it open. */
+    OpenFile file;
+    int openCount = 0;
+    /** The length of the file, including writes not yet written back. */
+    int length;
+    int numDirty = 0;
+    /** The number of blocks of the file being read in or written back. */
+    int numBusy = 0;
+    HashMap<Integer, Block> blocks = new HashMap<Integer, Block>();
+  }
+
+  /**
+   * A block of the cache. Blocks are kept on a circular list, most recently
+   * used first.
+   */
+  private static class Block {
+    Block(int index) {
+      this.index = index;
+      prev = next = this;
+    }
+
+    void unlink() {
+      prev.next = next;
+      next.prev = prev;
+      prev = next = this;
+    }
+
+    void linkAfter(Block block) {
+      prev = block;
+      next = block.next;
+      block.next.prev = this;
+      block.next = this;
+    }
+
+    /** The block's place in <tt>data</tt>. */
+    int index;
+    CachedFile owner = null;
+    int number;
+    boolean dirty = false;
+    /**
+     * <tt>true</tt> while the block is being read into or written back. Only
+     * the thread doing so may touch it.
+     */
+    boolean busy = false;
+    Block prev, next;
+  }
+
+  /**
+   * An open file whose reads and writes go through the cache.
+   */
+  private class CacheOpenFile extends OpenFileWithPosition {
+    CacheOpenFile(CachedFile state) {
+      super(fileSystem, state.name);
+      this.state = state;
+    }
+
+    public int read(int pos, byte[] buf, int offset, int length) {
+      return read(pos, buf, new int[] { offset }, new int[] { length }, 1);
+    }
+
+    public int read(int pos, byte[] buf, int[] offsets, int[] lengths, int count) {
+      if (state == null)
+        return -1;
+
+      return BufferCache.this.read(state, pos, buf, offsets, lengths, count);
+    }
+
+    public int write(int pos, byte[] buf, int offset, int length) {
+      return write(pos, buf, new int[] { offset }, new int[] { length }, 1);
+    }
+
+    public int write(int pos, byte[] buf, int[] offsets, int[] lengths, int count) {
+      if (state == null)
+        return -1;
+
+      return BufferCache.this.write(state, pos, buf, offsets, lengths, count);
+    }
+
+    public int length() {
+      return (state == null) ? -1 : state.length;
+    }
+
+    public void close() {
+      if (state != null) {
+        BufferCache.this.close(state);
+        state = null;
+      }
+    }
+
+    private CachedFile state;
+  }
+
+  private FileSystem fileSystem;
+  private int blockSize;
+  private long flushInterval;
+
+  /** The contents of every block, one after another. */
+  private byte[] data;
+  private Block[] blocks;
+  /** The head of the LRU list. It is not a block of the cache itself. */
+  private Block lru = new Block(-1);
+  /** The state of every file with an open or a cached block, by name. */
+  private HashMap<String, CachedFile> files = new HashMap<String, CachedFile>();
+  private int numDirty = 0;
+
+  private Lock lock;
+  /** Signalled when the first block is dirtied. */
+  private Condition2 dirtied;
+  /** Signalled whenever blocks stop being busy. */
+  private Condition2 idle;
+}
@@ -22,9 +22,17 @@ public class UserKernel extends ThreadedKernel {
       }
     });
     int numPhysPages = Machine.processor().getNumPhysPages();
-    for (int i = 0; i < numPhysPages; i++) {
-      pageTable.add(i);
+    freePages = new int[numPhysPages];
+    isFree = new boolean[numPhysPages];
+    for (int i = numPhysPages - 1; i >= 0; i--) {
+      freePages[numFreePages++] = i;
+      isFree[i] = true;
     }
+    // no blocks means no cache: user files go straight to the file system
+    int cacheBlocks = Config.getInteger("UserKernel.cacheBlocks", 64);
+    if (cacheBlocks > 0)
+      fileCache = new BufferCache(fileSystem, cacheBlocks, Config.getInteger("UserKernel.cacheBlockSize", 1024),
+          Config.getInteger("UserKernel.flushInterval", 100000));
   }
 
   public void selfTest() {
@@ -47,6 +55,13 @@ public class UserKernel extends ThreadedKernel {
 
   public void run() {
     super.run();
+    if (fileCache != null) {
+      new KThread(new Runnable() {
+        public void run() {
+          fileCache.runFlusher();
+        }
+      }).setName("buffer flusher").fork();
+    }
     UserProcess process = UserProcess.newUserProcess();
     String shellProgram = Machine.getShellProgramName();
     Lib.debug('a', "Shell program: " + shellProgram);
@@ -55,24 +70,109 @@ public class UserKernel extends ThreadedKernel {
   }
 
   public void terminate() {
+    if (fileCache != null)
+      fileCache.flush();
     super.terminate();
   }
 
+  /**
+   * Open an executable to load. On the stub file system the file is mapped, so
+   * that its sections are copied out of host memory. Returns null if it cannot
+   * be opened. Blocks of it still dirty in the buffer cache are written back
+   * first.
+   */
+  public static OpenFile openExecutable(String name) {
+    if (fileCache != null)
+      fileCache.flush(name);
+    if (fileSystem instanceof StubFileSystem)
+      return ((StubFileSystem) fileSystem).openMapped(name);
+    return fileSystem.open(name, false);
+  }
+
+  /**
+   * Open a file for a user process, through the buffer cache if there is one.
+   * Returns null if it cannot be opened.
+   */
+  public static OpenFile openFile(String name, boolean truncate) {
+    if (fileCache == null)
+      return fileSystem.open(name, truncate);
+    return fileCache.open(name, truncate);
+  }
+
+  /**
+   * Remove a file for a user process, through the buffer cache if there is
+   * one.
+   */
+  public static boolean removeFile(String name) {
+    if (fileCache == null)
+      return fileSystem.remove(name);
+    return fileCache.remove(name);
+  }
+
+  /**
+   * Allocate one physical page. Returns its ppn, or -1 if memory is exhausted.
+   */
   public static int getFreePage() {
     int pageNumber = -1;
-    Machine.interrupt().disable();
-    if (pageTable.isEmpty() == false) {
-      pageNumber = pageTable.removeFirst();
+    boolean intStatus = Machine.interrupt().disable();
+    if (numFreePages > 0) {
+      pageNumber = freePages[--numFreePages];
+      isFree[pageNumber] = false;
     }
-    Machine.interrupt().enable();
+    Machine.interrupt().restore(intStatus);
     return pageNumber;
   }
 
   public static void addFreePage(int pageNumber) {
     Lib.assertTrue(pageNumber >= 0 && pageNumber < Machine.processor().getNumPhysPages());
-    Machine.interrupt().disable();
-    pageTable.add(pageNumber);
-    Machine.interrupt().enable();
+    boolean intStatus = Machine.interrupt().disable();
+    Lib.assertTrue(!isFree[pageNumber], "page freed twice");
+    isFree[pageNumber] = true;
+    freePages[numFreePages++] = pageNumber;
+    Machine.interrupt().restore(intStatus);
+  }
+
+  /**
+   * Allocate <i>count</i> physical pages at once. Either all of them are
+   * allocated or none are. Returns their ppns, or null if there are not enough
+   * free pages.
+   */
+  public static int[] allocatePages(int count) {
+    Lib.assertTrue(count >= 0);
+    int[] pages = null;
+    boolean intStatus = Machine.interrupt().disable();
+    if (count <= numFreePages) {
+      pages = new int[count];
+      for (int i = 0; i < count; i++) {
+        pages[i] = freePages[--numFreePages];
+        isFree[pages[i]] = false;
+      }
+    }
+    else {
+      Lib.debug('a', "[UserKernel.allocatePages] out of memory: wanted " + count + ", free " + numFreePages);
+    }
+    Machine.interrupt().restore(intStatus);
+    return pages;
+  }
+
+  /**
+   * Free the first <i>count</i> physical pages in <i>pages</i> at once.
+   */
+  public static void freePages(int[] pages, int count) {
+    int numPhysPages = Machine.processor().getNumPhysPages();
+    boolean intStatus = Machine.interrupt().disable();
+    for (int i = 0; i < count; i++) {
+      int pageNumber = pages[i];
+      Lib.assertTrue(pageNumber >= 0 && pageNumber < numPhysPages);
+      Lib.assertTrue(!isFree[pageNumber], "page freed twice");
+      isFree[pageNumber] = true;
+      freePages[numFreePages++] = pageNumber;
+    }
+    Machine.interrupt().restore(intStatus);
+  }
+
+  public static int getNumFreePages() {
+    return numFreePages;
   }
 
   public static int getNextPid() {
@@ -104,8 +204,15 @@ public class UserKernel extends ThreadedKernel {
   }
 
   public static SynchConsole console;
+  /**
+   * The cache that the files user processes open go through, or null if
+   * <tt>UserKernel.cacheBlocks</tt> is 0.
+   */
+  public static BufferCache fileCache;
   private static Coff dummy1 = null;
-  private static LinkedList<Integer> pageTable = new LinkedList<Integer>();
+  private static int[] freePages;
+  private static boolean[] isFree;
+  private static int numFreePages = 0;
   private static int nextPid = 0;
   private static HashMap<Integer, UserProcess> processMap = new HashMap<Integer, UserProcess>();
 
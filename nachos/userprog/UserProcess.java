@@ -6,6 +6,7 @@ import nachos.userprog.*;
 
 import java.util.LinkedList;
 import java.util.Iterator;
+import java.util.Arrays;
 import java.io.EOFException;
 
 public class UserProcess {
@@ -16,7 +17,7 @@ public class UserProcess {
     fds[STDIN].file = UserKernel.console.openForReading(); 
     fds[STDIN].position = 0;
     Lib.assertTrue(fds[STDIN] != null); 
-    OpenFile retval = UserKernel.fileSystem.open("out", false); 
+    OpenFile retval = UserKernel.openFile("out", false); 
     int fileHandle = findEmptyFileDescriptor();
     fds[fileHandle].file = retval; 
     fds[fileHandle].position = 0; 
@@ -46,8 +47,9 @@ public class UserProcess {
 
   public String readVirtualMemoryString(int vaddr, int maxLength) {
     Lib.assertTrue(maxLength >= 0);
-    byte[] bytes = new byte[maxLength + 1];
-    int bytesRead = readVirtualMemory(vaddr, bytes);
+    // syscalls ask for at most MAXSTRLEN, so they reuse the scratch buffer
+    byte[] bytes = (maxLength < scratch.length) ? scratch : new byte[maxLength + 1];
+    int bytesRead = readVirtualMemory(vaddr, bytes, 0, maxLength + 1);
     for (int length = 0; length < bytesRead; length++) {
       if (bytes[length] == 0) {
         return new String(bytes, 0, length);
@@ -62,21 +64,16 @@ public class UserProcess {
 
   public int readVirtualMemory(int vaddr, byte[] data, int offset, int length) {
     Lib.assertTrue(offset >= 0 && length >= 0 && offset + length <= data.length);
-    Processor processor = Machine.processor(); 
-    byte[] memory = processor.getMemory();
-    int vpn = processor.pageFromAddress(vaddr);
-    int addressOffset = processor.offsetFromAddress(vaddr); 
-    TranslationEntry entry = null; 
-    entry = pageTable[vpn]; 
-    entry.used = true;
-    int ppn = entry.ppn;
-    int paddr = (ppn * pageSize) + addressOffset; 
-    if (ppn < 0 || ppn >= processor.getNumPhysPages()) { 
-      Lib.debug(dbgProcess, "\t\t UserProcess.readVirtualMemory(): bad ppn " + ppn);
-      return 0; 
-    } 
-    int amount = Math.min(length, memory.length - paddr);
-    System.arraycopy(memory, paddr, data, offset, amount);
+    byte[] memory = Machine.processor().getMemory();
+    int amount = 0;
+    while (amount < length) {
+      int paddr = translate(vaddr + amount, false);
+      if (paddr < 0)
+        break;
+      int chunk = Math.min(length - amount, pageSize - Processor.offsetFromAddress(vaddr + amount));
+      System.arraycopy(memory, paddr, data, offset + amount, chunk);
+      amount += chunk;
+    }
     return amount;
   }
 
@@ -86,33 +83,47 @@ public class UserProcess {
 
   public int writeVirtualMemory(int vaddr, byte[] data, int offset, int length) {
     Lib.assertTrue(offset >= 0 && length >= 0 && offset + length <= data.length);
-    Processor processor = Machine.processor(); 
     byte[] memory = Machine.processor().getMemory();
-    int vpn = processor.pageFromAddress(vaddr); 
-    int addressOffset = processor.offsetFromAddress(vaddr);
-    TranslationEntry entry = null;
-    entry = pageTable[vpn];
-    entry.used = true; 
-    entry.dirty = true; 
-    int ppn = entry.ppn; 
-    int paddr = (ppn * pageSize) + addressOffset; 
-    if (entry.readOnly) { 
-      Lib.debug(dbgProcess, "\t\t [UserProcess.writeVirtualMemory]: write read-only page " + ppn); 
-      return 0; 
-    } 
-    if (ppn < 0 || ppn >= processor.getNumPhysPages()) { 
-      Lib.debug(dbgProcess, "\t\t [UserProcess.writeVirtualMemory]: bad ppn " + ppn); 
-      return 0; 
-    } 
-    int amount = Math.min(length, memory.length - vaddr);
-    Lib.debug(dbgProcess, "[UserProcess.writeVirtualMemory]: arrary copy amount: " + amount);
-    System.arraycopy(data, offset, memory, vaddr, amount);
+    int amount = 0;
+    while (amount < length) {
+      int paddr = translate(vaddr + amount, true);
+      if (paddr < 0)
+        break;
+      int chunk = Math.min(length - amount, pageSize - Processor.offsetFromAddress(vaddr + amount));
+      System.arraycopy(data, offset + amount, memory, paddr, chunk);
+      amount += chunk;
+    }
     return amount;
   }
 
+  /**
+   * Translate a virtual address of this process for a kernel copy, marking the
+   * page used (and dirty if writing). Returns the physical address, or -1 if
+   * the page is not mapped, is read-only and being written, or has a bad ppn.
+   */
+  protected int translate(int vaddr, boolean writing) {
+    int vpn = Processor.pageFromAddress(vaddr);
+    if (pageTable == null || vpn >= pageTable.length || pageTable[vpn] == null || !pageTable[vpn].valid)
+      return -1;
+    TranslationEntry entry = pageTable[vpn];
+    if (writing && entry.readOnly) {
+      Lib.debug(dbgProcess, "\t\t [UserProcess.translate]: write read-only page " + vpn);
+      return -1;
+    }
+    int ppn = entry.ppn;
+    if (ppn < 0 || ppn >= Machine.processor().getNumPhysPages()) {
+      Lib.debug(dbgProcess, "\t\t [UserProcess.translate]: bad ppn " + ppn);
+      return -1;
+    }
+    entry.used = true;
+    if (writing)
+      entry.dirty = true;
+    return ppn * pageSize + Processor.offsetFromAddress(vaddr);
+  }
+
   private boolean load(String name, String[] args) {
     Lib.debug(dbgProcess, "UserProcess.load(\"" + name + "\")");
-    OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
+    OpenFile executable = UserKernel.openExecutable(name);
     if (executable == null) {
       Lib.debug(dbgProcess, "\t[UserProcess.load] failed to open " + name);
       return false;
@@ -149,11 +160,6 @@ public class UserProcess {
     numPages += stackPages;
     initialSP = numPages * pageSize;
     numPages++;
-    pageTable = new TranslationEntry[numPages]; 
-    for (int i = 0; i < numPages; i++) { 
-      int ppn = UserKernel.getFreePage(); 
-      pageTable[i] = new TranslationEntry(i, ppn, true, false, false, false); 
-    }
     if (!loadSections()) {
       return false;
     }
@@ -175,11 +181,17 @@ public class UserProcess {
   }
 
   protected boolean loadSections() {
-    if (numPages > Machine.processor().getNumPhysPages()) {
+    int[] frames = UserKernel.allocatePages(numPages);
+    if (frames == null) {
       coff.close();
       Lib.debug(dbgProcess, "\tinsufficient physical memory");
       return false;
     }
+    numFrames = numPages;
+    pageTable = new TranslationEntry[numPages]; 
+    for (int i = 0; i < numPages; i++) { 
+      pageTable[i] = new TranslationEntry(i, frames[i], true, false, false, false); 
+    }
     for (int s = 0; s < coff.getNumSections(); s++) {
       CoffSection section = coff.getSection(s);
       Lib.debug(dbgProcess, "\tinitializing " + section.getName() + " section (" + section.getLength() + " pages)");
@@ -195,12 +207,24 @@ public class UserProcess {
   }
 
   protected void unloadSections() { 
+    int[] frames = new int[numPages];
+    int count = 0;
     for (int i = 0; i < numPages; i++) { 
-      UserKernel.addFreePage(pageTable[i].ppn); 
+      if (pageTable[i].valid)
+        frames[count++] = pageTable[i].ppn;
       pageTable[i].valid = false; 
     } 
+    UserKernel.freePages(frames, count);
+    numFrames -= count;
   } 
 
+  /**
+   * Return the number of physical pages this process currently holds.
+   */
+  public int getNumFrames() {
+    return numFrames;
+  }
+
   public void initRegisters() {
     Processor processor = Machine.processor();
     for (int i = 0; i < processor.numUserRegisters; i++) {
@@ -213,8 +237,8 @@ public class UserProcess {
   }
 
   private int handleHalt() {
-    Machine.halt();
-    Lib.assertNotReached("Machine.halt() did not halt machine!");
+    Kernel.kernel.terminate();
+    Lib.assertNotReached("Kernel.terminate() did not halt machine!");
     return 0;
   }
 
@@ -222,7 +246,7 @@ public class UserProcess {
     Lib.debug(dbgProcess, "handleCreate()"); 
     String filename = readVirtualMemoryString(a0, MAXSTRLEN);
     Lib.debug(dbgProcess, "filename: " + filename);
-    OpenFile retval = UserKernel.fileSystem.open(filename, true); 
+    OpenFile retval = UserKernel.openFile(filename, true); 
     if (retval == null) { 
       return -1; 
     }
@@ -244,7 +268,7 @@ public class UserProcess {
     Lib.debug(dbgProcess, "[UserProcess.handleOpen] a0: " + a0 + "\n"); 
     String filename = readVirtualMemoryString(a0, MAXSTRLEN); 
     Lib.debug(dbgProcess, "filename: " + filename); 
-    OpenFile retval = UserKernel.fileSystem.open(filename, false); 
+    OpenFile retval = UserKernel.openFile(filename, false); 
     if (retval == null) { 
       return -1; 
     } 
@@ -269,19 +293,18 @@ public class UserProcess {
     Lib.debug(dbgProcess, "handle: " + handle); 
     Lib.debug(dbgProcess, "buf address: " + vaddr); 
     Lib.debug(dbgProcess, "buf size: " + bufsize); 
-    if (handle < 0 || handle > MAXFD || fds[handle].file == null) 
+    if (handle < 0 || handle >= MAXFD || fds[handle].file == null || fds[handle].mapped || bufsize < 0) 
       return -1; 
     FileDescriptor fd = fds[handle]; 
-    byte[] buf = new byte[bufsize]; 
-    int retval = fd.file.read(fd.position, buf, 0, bufsize); 
-    if (retval < 0) { 
+    int count = mapWindows(vaddr, bufsize, true);
+    if (count == 0 && bufsize > 0)
+      return -1;
+    int retval = fd.file.read(fd.position, Machine.processor().getMemory(), ioOffsets, ioLengths, count);
+    unmapWindows(count);
+    if (retval < 0) 
       return -1; 
-    } 
-    else { 
-      int number = writeVirtualMemory(vaddr, buf); 
-      fd.position = fd.position + number; 
-      return retval; 
-    }
+    fd.position = fd.position + retval; 
+    return retval; 
   } 
 
   private int handleWrite(int a0, int a1, int a2) {
@@ -292,19 +315,69 @@ public class UserProcess {
     Lib.debug(dbgProcess, "handle: " + handle); 
     Lib.debug(dbgProcess, "buf address: " + vaddr); 
     Lib.debug(dbgProcess, "buf size: " + bufsize); 
-    if (handle < 0 || handle > MAXFD || fds[handle].file == null) 
+    if (handle < 0 || handle >= MAXFD || fds[handle].file == null || fds[handle].mapped || bufsize < 0) 
       return -1; 
     FileDescriptor fd = fds[handle]; 
-    byte[] buf = new byte[bufsize]; 
-    int bytesRead = readVirtualMemory(vaddr, buf); 
-    int retval = fd.file.write(fd.position, buf, 0, bytesRead); 
-    if (retval < 0) { 
+    int count = mapWindows(vaddr, bufsize, false);
+    if (count == 0 && bufsize > 0)
+      return -1;
+    int retval = fd.file.write(fd.position, Machine.processor().getMemory(), ioOffsets, ioLengths, count);
+    unmapWindows(count);
+    if (retval < 0) 
       return -1; 
-    } 
-    else { 
-      fd.position = fd.position + retval; 
-      return retval; 
-    } 
+    fd.position = fd.position + retval; 
+    return retval; 
+  }
+
+  /**
+   * Map a user buffer onto windows of main memory in ioOffsets and ioLengths,
+   * one per run of physically contiguous pages, so that a file can be read or
+   * written in place. Stops at the first page that cannot be accessed. Returns
+   * the number of windows. Each page is pinned until unmapWindows().
+   */
+  private int mapWindows(int vaddr, int length, boolean writing) {
+    int count = 0;
+    int amount = 0;
+    while (amount < length) {
+      int paddr = translate(vaddr + amount, writing);
+      if (paddr < 0)
+        break;
+      int chunk = Math.min(length - amount, pageSize - Processor.offsetFromAddress(vaddr + amount));
+      pinFrame(paddr / pageSize);
+      if (count > 0 && ioOffsets[count - 1] + ioLengths[count - 1] == paddr) {
+        ioLengths[count - 1] += chunk;
+      }
+      else {
+        if (count == ioOffsets.length) {
+          ioOffsets = Arrays.copyOf(ioOffsets, count * 2);
+          ioLengths = Arrays.copyOf(ioLengths, count * 2);
+        }
+        ioOffsets[count] = paddr;
+        ioLengths[count] = chunk;
+        count++;
+      }
+      amount += chunk;
+    }
+    return count;
+  }
+
+  private void unmapWindows(int count) {
+    for (int i = 0; i < count; i++) {
+      int first = ioOffsets[i] / pageSize;
+      int last = (ioOffsets[i] + ioLengths[i] - 1) / pageSize;
+      for (int ppn = first; ppn <= last; ppn++)
+        unpinFrame(ppn);
+    }
+  }
+
+  /**
+   * Keep a frame in place while the kernel does I/O directly into it. Nothing
+   * moves frames here, so this only matters to subclasses that page.
+   */
+  protected void pinFrame(int ppn) {
+  }
+
+  protected void unpinFrame(int ppn) {
   }
 
   private int handleClose(int a0) {
@@ -314,16 +387,52 @@ public class UserProcess {
       return -1; 
     boolean retval = true;
     FileDescriptor fd = fds[handle]; 
+    if (fd.mapped) {
+      unmapFile(handle);
+      fd.mapped = false;
+    }
     fd.position = 0;
     fd.file.close();
     if (fd.toRemove) { 
-      retval = UserKernel.fileSystem.remove(fd.filename); 
+      retval = UserKernel.removeFile(fd.filename); 
       fd.toRemove = false; 
     } 
     fd.filename = ""; 
     return retval ? 0 : -1; 
   } 
 
+  private int handleMmap(int a0, int a1) {
+    Lib.debug(dbgProcess, "handleMmap()");
+    int handle = a0;
+    int vaddr = a1;
+    Lib.debug(dbgProcess, "handle: " + handle);
+    Lib.debug(dbgProcess, "address: " + vaddr);
+    if (handle < 0 || handle >= MAXFD || fds[handle].file == null || fds[handle].mapped)
+      return -1;
+    int length = mapFile(handle, fds[handle].file, vaddr);
+    if (length < 0)
+      return -1;
+    fds[handle].mapped = true;
+    return length;
+  }
+
+  /**
+   * Map an open file into this process at vaddr, so that its pages are read in
+   * as they are touched. Returns the length of the file, or -1 if it cannot be
+   * mapped there. This needs demand paging, so only subclasses that page
+   * support it.
+   */
+  protected int mapFile(int handle, OpenFile file, int vaddr) {
+    return -1;
+  }
+
+  /**
+   * Write back the dirty pages of a file mapped by mapFile() and remove the
+   * map. Called when its descriptor is closed, including on exit.
+   */
+  protected void unmapFile(int handle) {
+  }
+
   private int handleUnlink(int a0) {
     Lib.debug(dbgProcess, "handleUnlink()");
     boolean retval = true;
@@ -331,7 +440,7 @@ public class UserProcess {
     Lib.debug(dbgProcess, "filename: " + filename); 
     int fileHandle = findFileDescriptorByName(filename); 
     if (fileHandle < 0) { 
-      retval = UserKernel.fileSystem.remove(fds[fileHandle].filename); 
+      retval = UserKernel.removeFile(filename); 
     }
     else { 
       fds[fileHandle].toRemove = true; 
@@ -381,13 +490,12 @@ public class UserProcess {
       return -1; 
     } 
     String args[] = new String[argc]; 
-    byte temp[] = new byte[4]; 
     for (int i = 0; i < argc; i++) { 
-      int cntBytes = readVirtualMemory(argv + i * 4, temp); 
+      int cntBytes = readVirtualMemory(argv + i * 4, scratch, 0, 4); 
       if (cntBytes != 4) { 
         return -1; 
       } 
-      int argAddress = Lib.bytesToInt(temp, 0); 
+      int argAddress = Lib.bytesToInt(scratch, 0); 
       args[i] = readVirtualMemoryString(argAddress, MAXSTRLEN); 
     } 
     UserProcess childProcess = UserProcess.newUserProcess(); 
@@ -433,9 +541,8 @@ public class UserProcess {
     } 
     childProcess.thread.join(); 
     UserKernel.unregisterProcess(childpid); 
-    byte temp[] = new byte[4]; 
-    temp = Lib.bytesFromInt(childProcess.exitStatus); 
-    int cntBytes = writeVirtualMemory(adrStatus, temp);
+    Lib.bytesFromInt(scratch, 0, childProcess.exitStatus); 
+    int cntBytes = writeVirtualMemory(adrStatus, scratch, 0, 4);
     if (cntBytes != 4) 
       return 1; 
     else 
@@ -443,7 +550,7 @@ public class UserProcess {
   } 
 
   private static final int syscallHalt = 0, syscallExit = 1, syscallExec = 2, syscallJoin = 3, syscallCreate = 4,
-      syscallOpen = 5, syscallRead = 6, syscallWrite = 7, syscallClose = 8, syscallUnlink = 9;
+      syscallOpen = 5, syscallRead = 6, syscallWrite = 7, syscallClose = 8, syscallUnlink = 9, syscallMmap = 10;
 
   public int handleSyscall(int syscall, int a0, int a1, int a2, int a3) {
     switch (syscall) {
@@ -461,6 +568,8 @@ public class UserProcess {
       return handleClose(a0);
     case syscallUnlink:
       return handleUnlink(a0); 
+    case syscallMmap:
+      return handleMmap(a0, a1);
     case syscallExit: 
       handleExit(a0); 
       Lib.assertNotReached(); 
@@ -512,10 +621,15 @@ public class UserProcess {
   protected Coff coff;
   protected TranslationEntry[] pageTable;
   protected int numPages;
+  protected int numFrames = 0;
   protected final int stackPages = 8;
   private int initialPC, initialSP;
   private int argc, argv;
   private static final int pageSize = Processor.pageSize;
+  /** Holds the strings and words syscalls copy in and out of user memory. */
+  private byte[] scratch = new byte[MAXSTRLEN + 1];
+  private int[] ioOffsets = new int[8];
+  private int[] ioLengths = new int[8];
   private static final char dbgProcess = 'a';
 
   public class FileDescriptor { 
@@ -525,6 +639,7 @@ public class UserProcess {
     private OpenFile file = null; 
     private int position = 0; 
     private boolean toRemove = false;
+    private boolean mapped = false;
   } 
 
   public static final int MAXFD = 16; 
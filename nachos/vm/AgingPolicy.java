@@ -0,0 +1,63 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+/**
+ * An approximation of least-recently-used replacement. Each frame has an 8-bit
+ * age counter. On every page fault, each counter is shifted right and the
+ * page's used bit is shifted in at the top, then the used bit is cleared. The
+ * page with the smallest counter has gone longest without being used.
+ */
+public class AgingPolicy extends ReplacementPolicy {
+  /**
+   * Allocate a new aging policy.
+   */
+  public AgingPolicy() {
+  }
+
+  public void initialize(CoreMap coreMap) {
+    super.initialize(coreMap);
+
+    ages = new int[coreMap.getNumFrames()];
+  }
+
+  public void pageFaulted() {
+    for (int ppn = 0; ppn < ages.length; ppn++) {
+      TranslationEntry entry = coreMap.getEntry(ppn);
+      if (entry == null || !entry.valid)
+        continue;
+
+      ages[ppn] = (ages[ppn] >> 1) | (entry.used ? 0x80 : 0);
+      entry.used = false;
+    }
+  }
+
+  public void frameAssigned(int ppn) {
+    // the page is about to be used by the access that faulted
+    ages[ppn] = 0x80;
+  }
+
+  public int findVictim() {
+    int victim = -1;
+
+    // start after the last victim, so that ties do not always pick the same
+    // frames
+    for (int i = 0; i < ages.length; i++) {
+      int ppn = (start + i) % ages.length;
+
+      if (coreMap.isEvictable(ppn) && (victim == -1 || ages[ppn] < ages[victim]))
+        victim = ppn;
+    }
+
+    if (victim != -1)
+      start = (victim + 1) % ages.length;
+
+    return victim;
+  }
+
+  private int[] ages;
+  private int start = 0;
+}
@@ -0,0 +1,44 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+/**
+ * Second-chance replacement. A hand sweeps the frames in order, clearing the
+ * used bit of each page it passes, and evicts the first page whose used bit is
+ * already clear.
+ */
+public class ClockPolicy extends ReplacementPolicy {
+  /**
+   * Allocate a new clock policy.
+   */
+  public ClockPolicy() {
+  }
+
+  public int findVictim() {
+    int numFrames = coreMap.getNumFrames();
+
+    // the first sweep may only clear used bits
+    for (int i = 0; i < 2 * numFrames; i++) {
+      int ppn = hand;
+      hand = (hand + 1) % numFrames;
+
+      if (!coreMap.isEvictable(ppn))
+        continue;
+
+      TranslationEntry entry = coreMap.getEntry(ppn);
+      if (entry.used) {
+        entry.used = false;
+        continue;
+      }
+
+      return ppn;
+    }
+
+    return -1;
+  }
+
+  private int hand = 0;
+}
@@ -0,0 +1,138 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+/**
+ * An inverted page table, recording for each physical page which owner and
+ * virtual page it holds, and whether it is pinned in memory.
+ */
+public class CoreMap {
+  /**
+   * Allocate a core map for the specified number of physical pages, all free.
+   *
+   * @param numPhysPages the number of physical pages.
+   */
+  public CoreMap(int numPhysPages) {
+    owners = new PageOwner[numPhysPages];
+    vpns = new int[numPhysPages];
+    pins = new int[numPhysPages];
+  }
+
+  /**
+   * Return the number of physical pages in this core map.
+   *
+   * @return the number of physical pages.
+   */
+  public int getNumFrames() {
+    return owners.length;
+  }
+
+  /**
+   * Record that a frame now holds the specified page of a process or image.
+   *
+   * @param ppn   the frame.
+   * @param owner the owner the page belongs to.
+   * @param vpn   the virtual page.
+   */
+  public void assign(int ppn, PageOwner owner, int vpn) {
+    Lib.assertTrue(owners[ppn] == null);
+
+    owners[ppn] = owner;
+    vpns[ppn] = vpn;
+  }
+
+  /**
+   * Record that a frame is free.
+   *
+   * @param ppn the frame.
+   */
+  public void clear(int ppn) {
+    Lib.assertTrue(pins[ppn] == 0);
+
+    owners[ppn] = null;
+  }
+
+  /**
+   * Return the owner of the page a frame holds.
+   *
+   * @param ppn the frame.
+   * @return the owner, or <tt>null</tt> if the frame is free.
+   */
+  public PageOwner getOwner(int ppn) {
+    return owners[ppn];
+  }
+
+  /**
+   * Return the virtual page a frame holds.
+   *
+   * @param ppn the frame.
+   * @return the virtual page number. Only meaningful if the frame has an owner.
+   */
+  public int getVPN(int ppn) {
+    return vpns[ppn];
+  }
+
+  /**
+   * Return the page table entry of the page a frame holds.
+   *
+   * @param ppn the frame.
+   * @return the entry, or <tt>null</tt> if the frame is free.
+   */
+  public TranslationEntry getEntry(int ppn) {
+    if (owners[ppn] == null)
+      return null;
+
+    return owners[ppn].getEntry(vpns[ppn]);
+  }
+
+  /**
+   * Keep a frame from being evicted. Calls nest.
+   *
+   * @param ppn the frame to pin.
+   */
+  public void pin(int ppn) {
+    boolean intStatus = Machine.interrupt().disable();
+    pins[ppn]++;
+    Machine.interrupt().restore(intStatus);
+  }
+
+  /**
+   * Undo one call to <tt>pin()</tt>.
+   *
+   * @param ppn the frame to unpin.
+   */
+  public void unpin(int ppn) {
+    boolean intStatus = Machine.interrupt().disable();
+    Lib.assertTrue(pins[ppn] > 0);
+    pins[ppn]--;
+    Machine.interrupt().restore(intStatus);
+  }
+
+  /**
+   * Test whether a frame is pinned.
+   *
+   * @param ppn the frame.
+   * @return <tt>true</tt> if the frame is pinned.
+   */
+  public boolean isPinned(int ppn) {
+    return pins[ppn] > 0;
+  }
+
+  /**
+   * Test whether a frame may be chosen as a victim: it holds a page that is
+   * resident, and it is not pinned.
+   *
+   * @param ppn the frame.
+   * @return <tt>true</tt> if the frame may be evicted.
+   */
+  public boolean isEvictable(int ppn) {
+    return owners[ppn] != null && pins[ppn] == 0 && owners[ppn].getEntry(vpns[ppn]).valid;
+  }
+
+  private PageOwner[] owners;
+  private int[] vpns;
+  private int[] pins;
+}
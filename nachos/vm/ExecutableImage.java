@@ -0,0 +1,179 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+/**
+ * The pages of an executable that can be shared by every process running it.
+ * Read-only sections are mapped into each process's page table directly, as the
+ * same <tt>TranslationEntry</tt>, so that a page brought in, used or evicted by
+ * one process is seen by all. Pages of writable initialized sections are shared
+ * the same way, but always read-only, and a process that writes one gets its
+ * own copy.
+ *
+ * <p>
+ * Images are kept by <tt>VMKernel</tt>, one per executable file, and are
+ * reference counted by the processes running them.
+ */
+public class ExecutableImage implements PageOwner {
+  /**
+   * Allocate a new image of an executable, with none of its pages resident.
+   *
+   * @param key  the key <tt>VMKernel</tt> keeps this image under.
+   * @param coff the executable, which this image reads its pages from.
+   */
+  public ExecutableImage(String key, Coff coff) {
+    this.key = key;
+    this.coff = coff;
+
+    int numPages = 0;
+    for (int s = 0; s < coff.getNumSections(); s++) {
+      CoffSection section = coff.getSection(s);
+      numPages = Math.max(numPages, section.getFirstVPN() + section.getLength());
+    }
+
+    entries = new TranslationEntry[numPages];
+    sections = new CoffSection[numPages];
+    for (int s = 0; s < coff.getNumSections(); s++) {
+      CoffSection section = coff.getSection(s);
+      if (!section.isInitialzed())
+        continue;
+
+      for (int i = 0; i < section.getLength(); i++) {
+        int vpn = section.getFirstVPN() + i;
+        entries[vpn] = new TranslationEntry(vpn, -1, false, true, false, false);
+        sections[vpn] = section;
+      }
+    }
+  }
+
+  /**
+   * Return the key <tt>VMKernel</tt> keeps this image under.
+   */
+  String getKey() {
+    return key;
+  }
+
+  /**
+   * Add a process to those running this image.
+   */
+  void attach() {
+    refCount++;
+  }
+
+  /**
+   * Remove a process from those running this image.
+   *
+   * @return the number of processes still running it.
+   */
+  int detach() {
+    Lib.assertTrue(refCount > 0);
+
+    return --refCount;
+  }
+
+  /**
+   * Test whether a page of this image is shared.
+   *
+   * @param vpn the virtual page.
+   * @return <tt>true</tt> if processes should map this image's entry.
+   */
+  boolean isShared(int vpn) {
+    return vpn < entries.length && entries[vpn] != null;
+  }
+
+  /**
+   * Test whether a shared page must be copied before a process can write it.
+   *
+   * @param vpn the virtual page.
+   * @return <tt>true</tt> if the page belongs to a writable section.
+   */
+  boolean isCopyOnWrite(int vpn) {
+    return isShared(vpn) && !sections[vpn].isReadOnly();
+  }
+
+  /**
+   * Bring a shared page in from the executable. The caller must hold
+   * <tt>VMKernel.vmLock</tt>.
+   *
+   * @param vpn the virtual page.
+   * @return <tt>true</tt> if the page is now resident.
+   */
+  boolean faultIn(int vpn) {
+    TranslationEntry entry = entries[vpn];
+    if (entry.valid)
+      return true;
+
+    int ppn = VMKernel.allocateFrame(this, vpn);
+    if (ppn < 0)
+      return false;
+
+    // another process may have brought the page in while we waited for a frame
+    if (entry.valid) {
+      VMKernel.releaseFrame(ppn);
+      VMKernel.addFreePage(ppn);
+      return true;
+    }
+
+    Lib.debug(dbgVM, "\tloading shared vpn " + vpn + " from " + sections[vpn].getName() + " into ppn " + ppn);
+    sections[vpn].loadPage(vpn - sections[vpn].getFirstVPN(), ppn);
+
+    entry.ppn = ppn;
+    entry.used = false;
+    entry.dirty = false;
+    entry.valid = true;
+    return true;
+  }
+
+  /**
+   * Free every resident page and close the executable. Called once no process
+   * is running this image. The caller must hold <tt>VMKernel.vmLock</tt>.
+   */
+  void release() {
+    Lib.assertTrue(refCount == 0);
+
+    int[] frames = new int[entries.length];
+    int count = 0;
+    for (int vpn = 0; vpn < entries.length; vpn++) {
+      if (entries[vpn] != null && entries[vpn].valid) {
+        entries[vpn].valid = false;
+        VMKernel.releaseFrame(entries[vpn].ppn);
+        frames[count++] = entries[vpn].ppn;
+      }
+    }
+    VMKernel.freePages(frames, count);
+
+    coff.close();
+  }
+
+  public TranslationEntry getEntry(int vpn) {
+    return entries[vpn];
+  }
+
+  public long getWorkingSetWindow() {
+    return workingSetWindow;
+  }
+
+  public void pageOut(int vpn, int slot) {
+    // shared pages are never written, so the executable is still good
+    Lib.assertTrue(slot < 0);
+  }
+
+  public void pageCleaned(int vpn, int slot) {
+    Lib.assertNotReached("shared page written to swap");
+  }
+
+  private String key;
+  private Coff coff;
+  private int refCount = 0;
+  /** The shared entry for each page, or <tt>null</tt> if it is not shared. */
+  private TranslationEntry[] entries;
+  /** The section each shared page is loaded from. */
+  private CoffSection[] sections;
+
+  private long workingSetWindow = Config.getInteger("VMKernel.workingSetWindow", 20000);
+
+  private static final char dbgVM = 'v';
+}
@@ -0,0 +1,28 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+/**
+ * The body of the page cleaner, a kernel thread that keeps free frames
+ * available for page faults. It sleeps until the number of free frames drops
+ * below a low watermark, then evicts pages until a high watermark is reached,
+ * writing dirty victims to swap without holding up faults on other pages, and
+ * writes back dirty pages that have gone unused so they can later be evicted
+ * without a write. It also wakes to write back such pages when no page has
+ * been faulted in for <tt>VMKernel.launderInterval</tt> ticks.
+ */
+public class PageCleaner implements Runnable {
+  /**
+   * Allocate a new page cleaner.
+   */
+  public PageCleaner() {
+  }
+
+  public void run() {
+    while (true)
+      VMKernel.cleanPages();
+  }
+}
@@ -0,0 +1,47 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+/**
+ * Something that can own the frames in the core map: a process's private
+ * pages, or the pages of an executable shared by every process running it.
+ * The kernel holds <tt>VMKernel.vmLock</tt> whenever it calls an owner.
+ */
+public interface PageOwner {
+  /**
+   * Return the page table entry for a virtual page.
+   *
+   * @param vpn the virtual page.
+   * @return the entry.
+   */
+  public TranslationEntry getEntry(int vpn);
+
+  /**
+   * Return the time, in ticks, a page may go unused before it is no longer
+   * considered part of the working set.
+   *
+   * @return the working set window.
+   */
+  public long getWorkingSetWindow();
+
+  /**
+   * Note that a page has been evicted. The kernel has already marked it invalid.
+   *
+   * @param vpn  the page that was evicted.
+   * @param slot the swap slot it was written to, or -1 if it was clean and
+   *             whatever copy it came from is still good.
+   */
+  public void pageOut(int vpn, int slot);
+
+  /**
+   * Note that a resident page has been written back to swap while the page
+   * stayed clean, so it can later be evicted without a write.
+   *
+   * @param vpn  the page that was written.
+   * @param slot the swap slot it was written to.
+   */
+  public void pageCleaned(int vpn, int slot);
+}
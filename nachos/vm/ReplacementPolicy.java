@@ -0,0 +1,59 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+/**
+ * Chooses which resident page to evict when physical memory is full. The
+ * kernel holds <tt>VMKernel.vmLock</tt> whenever it calls a policy, and has
+ * copied the hardware's used and dirty bits into the page tables first.
+ *
+ * <p>
+ * The policy used by <tt>VMKernel</tt> is named by the
+ * <tt>VMKernel.replacementPolicy</tt> key in <tt>nachos.conf</tt>.
+ */
+public abstract class ReplacementPolicy {
+  /**
+   * Allocate a new replacement policy.
+   */
+  public ReplacementPolicy() {
+  }
+
+  /**
+   * Attach this policy to the core map it chooses victims from.
+   *
+   * @param coreMap the core map.
+   */
+  public void initialize(CoreMap coreMap) {
+    this.coreMap = coreMap;
+  }
+
+  /**
+   * Called whenever a page is about to be brought in, before any victim is
+   * chosen for it. Policies that sample the used bits periodically do so here.
+   */
+  public void pageFaulted() {
+  }
+
+  /**
+   * Called when a frame has been given to a newly resident page.
+   *
+   * @param ppn the frame.
+   */
+  public void frameAssigned(int ppn) {
+  }
+
+  /**
+   * Choose a victim. The victim must satisfy <tt>CoreMap.isEvictable()</tt>.
+   * The kernel marks each victim invalid before asking for the next, so it will
+   * not be chosen twice.
+   *
+   * @return the frame to evict, or -1 if no frame can be evicted.
+   */
+  public abstract int findVictim();
+
+  /** The core map victims are chosen from. */
+  protected CoreMap coreMap;
+}
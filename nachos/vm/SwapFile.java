@@ -0,0 +1,133 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+import java.util.BitSet;
+
+/**
+ * A swap area shared by all processes, kept in a single file on the kernel's
+ * file system. The file is divided into page-sized slots, and a bitmap records
+ * which slots are in use. The file grows as slots past its end are written.
+ */
+public class SwapFile {
+  /**
+   * Create a new, empty swap file with the specified name.
+   *
+   * @param name the name of the swap file.
+   */
+  public SwapFile(String name) {
+    this.name = name;
+
+    file = ThreadedKernel.fileSystem.open(name, true);
+    Lib.assertTrue(file != null, "could not open swap file " + name);
+  }
+
+  /**
+   * Allocate <i>count</i> adjacent free slots, so that they can be written with a
+   * single request.
+   *
+   * @param count the number of slots to allocate.
+   * @return the first slot allocated.
+   */
+  public int allocate(int count) {
+    Lib.assertTrue(count > 0);
+
+    int slot = used.nextClearBit(0);
+    int next;
+    while ((next = used.nextSetBit(slot)) >= 0 && next < slot + count)
+      slot = used.nextClearBit(next);
+
+    used.set(slot, slot + count);
+    return slot;
+  }
+
+  /**
+   * Release a slot allocated by <tt>allocate()</tt>.
+   *
+   * @param slot the slot to release.
+   */
+  public void free(int slot) {
+    Lib.assertTrue(used.get(slot));
+
+    used.clear(slot);
+  }
+
+  /**
+   * Write the specified physical pages to adjacent slots, starting at
+   * <i>slot</i>, with a single request.
+   *
+   * @param slot  the first slot to write.
+   * @param ppns  the physical pages to write.
+   * @param count the number of pages to write.
+   * @return <tt>true</tt> if every page was written.
+   */
+  public boolean write(int slot, int[] ppns, int count) {
+    int[] offsets = new int[count];
+    int[] lengths = new int[count];
+    for (int i = 0; i < count; i++) {
+      offsets[i] = ppns[i] * pageSize;
+      lengths[i] = pageSize;
+    }
+
+    Machine.countSwapWrites(count);
+
+    byte[] memory = Machine.processor().getMemory();
+    return file.write(slot * pageSize, memory, offsets, lengths, count) == count * pageSize;
+  }
+
+  /**
+   * Read a slot back into a physical page.
+   *
+   * @param slot the slot to read.
+   * @param ppn  the physical page to read it into.
+   * @return <tt>true</tt> if the whole page was read.
+   */
+  public boolean read(int slot, int ppn) {
+    Lib.assertTrue(used.get(slot));
+
+    Machine.countSwapReads(1);
+
+    byte[] memory = Machine.processor().getMemory();
+    return file.read(slot * pageSize, memory, ppn * pageSize, pageSize) == pageSize;
+  }
+
+  /**
+   * Read adjacent slots back into physical pages with a single request.
+   *
+   * @param slot  the first slot to read.
+   * @param ppns  the physical pages to read them into, one per slot.
+   * @param count the number of slots to read.
+   * @return <tt>true</tt> if every page was read.
+   */
+  public boolean read(int slot, int[] ppns, int count) {
+    int[] offsets = new int[count];
+    int[] lengths = new int[count];
+    for (int i = 0; i < count; i++) {
+      Lib.assertTrue(used.get(slot + i));
+      offsets[i] = ppns[i] * pageSize;
+      lengths[i] = pageSize;
+    }
+
+    Machine.countSwapReads(count);
+
+    byte[] memory = Machine.processor().getMemory();
+    return file.read(slot * pageSize, memory, offsets, lengths, count) == count * pageSize;
+  }
+
+  /**
+   * Close and remove the swap file.
+   */
+  public void close() {
+    file.close();
+    ThreadedKernel.fileSystem.remove(name);
+  }
+
+  private String name;
+  private OpenFile file;
+  private BitSet used = new BitSet();
+
+  private static final int pageSize = Processor.pageSize;
+}
@@ -5,6 +5,9 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.io.EOFException;
+import java.util.HashMap;
+
 /**
  * A kernel that can support multiple demand-paging user processes.
  */
@@ -21,6 +24,30 @@ public class VMKernel extends UserKernel {
    */
   public void initialize(String[] args) {
     super.initialize(args);
+
+    coreMap = new CoreMap(Machine.processor().getNumPhysPages());
+
+    String policyName = Config.getString("VMKernel.replacementPolicy", "nachos.vm.ClockPolicy");
+    policy = (ReplacementPolicy) Lib.constructObject(policyName);
+    policy.initialize(coreMap);
+    Machine.setReplacementPolicy(policyName);
+
+    swapCluster = Config.getInteger("VMKernel.swapCluster", 4);
+    Lib.assertTrue(swapCluster > 0);
+
+    int numPhysPages = Machine.processor().getNumPhysPages();
+    lowWatermark = Config.getInteger("VMKernel.lowWatermark", Math.max(1, numPhysPages / 8));
+    highWatermark = Config.getInteger("VMKernel.highWatermark", Math.max(lowWatermark + 1, numPhysPages / 4));
+    Lib.assertTrue(lowWatermark > 0 && highWatermark > lowWatermark && highWatermark <= numPhysPages);
+    launderInterval = Config.getInteger("VMKernel.launderInterval", 10000);
+    Lib.assertTrue(launderInterval >= 0);
+
+    vmLock = new Lock();
+    memoryLow = new Condition2(vmLock);
+    writesDone = new Condition2(vmLock);
+    swap = new SwapFile(Config.getString("VMKernel.swapFile", "swap"));
+
+    shareExecutables = Config.getBoolean("VMKernel.shareExecutables", true);
   }
 
   /**
@@ -34,6 +61,16 @@ public class VMKernel extends UserKernel {
    * Start running user programs.
    */
   public void run() {
+    new KThread(new PageCleaner()).setName("page cleaner").fork();
+    if (launderInterval > 0) {
+      new KThread(new Runnable() {
+        public void run() {
+          while (true)
+            checkIdle();
+        }
+      }).setName("launder timer").fork();
+    }
+
     super.run();
   }
 
@@ -41,9 +78,460 @@ public class VMKernel extends UserKernel {
    * Terminate this kernel. Never returns.
    */
   public void terminate() {
+    swap.close();
+
     super.terminate();
   }
 
+  /**
+   * Give a frame to the specified page of a process, evicting other pages if
+   * memory is full. The caller must hold <tt>vmLock</tt>.
+   *
+   * @param owner the process or image the page belongs to.
+   * @param vpn   the virtual page to give a frame to.
+   * @return the ppn of the frame, or -1 if every frame is pinned.
+   */
+  static int allocateFrame(PageOwner owner, int vpn) {
+    Lib.assertTrue(vmLock.isHeldByCurrentThread());
+
+    syncCurrentTLB();
+    policy.pageFaulted();
+    numFaults++;
+
+    int ppn;
+    while ((ppn = getFreePage()) < 0) {
+      // the page cleaner should have kept frames free, but if it could not
+      // keep up, evict synchronously
+      if (evictFrames(false) > 0)
+        continue;
+      if (numWriting == 0)
+        return -1;
+
+      // every evictable frame is on its way out
+      writesDone.sleep();
+    }
+
+    if (getNumFreePages() < lowWatermark)
+      memoryLow.wake();
+
+    coreMap.assign(ppn, owner, vpn);
+    policy.frameAssigned(ppn);
+    return ppn;
+  }
+
+  /**
+   * Called by the page cleaner. Wait until free frames run low, or paging has
+   * been idle for a while, then evict until there are <tt>highWatermark</tt>
+   * free frames, and write back a cluster of dirty pages that have not been
+   * used recently, so that they can later be evicted without a write.
+   */
+  static void cleanPages() {
+    vmLock.acquire();
+
+    while (getNumFreePages() >= lowWatermark && !launderDue)
+      memoryLow.sleep();
+    launderDue = false;
+
+    while (getNumFreePages() < highWatermark) {
+      if (evictFrames(true) == 0)
+        break;
+    }
+
+    launderFrames();
+
+    vmLock.release();
+  }
+
+  /**
+   * Called by the launder timer. Wait <tt>launderInterval</tt> ticks, and if no
+   * page was faulted in meanwhile, wake the page cleaner to launder while
+   * paging is idle, rather than only once frames run low.
+   */
+  static void checkIdle() {
+    ThreadedKernel.alarm.waitUntil(launderInterval);
+
+    vmLock.acquire();
+
+    if (numFaults == idleFaults) {
+      launderDue = true;
+      memoryLow.wake();
+    }
+    idleFaults = numFaults;
+
+    vmLock.release();
+  }
+
+  /**
+   * Wait until a page of a process is no longer being written out of the frame
+   * its page table entry still names. Such a page must not be brought back in
+   * until the write is done. The caller must hold <tt>vmLock</tt>.
+   *
+   * @param owner the process.
+   * @param vpn   the virtual page.
+   */
+  static void waitForPageOut(PageOwner owner, int vpn) {
+    while (isPageOutPending(owner, vpn))
+      writesDone.sleep();
+  }
+
+  /**
+   * Test whether a page of a process is being written out, as described for
+   * <tt>waitForPageOut()</tt>. The caller must hold <tt>vmLock</tt>.
+   *
+   * @param owner the process.
+   * @param vpn   the virtual page.
+   * @return <tt>true</tt> if the page is being written out.
+   */
+  static boolean isPageOutPending(PageOwner owner, int vpn) {
+    TranslationEntry entry = owner.getEntry(vpn);
+
+    return !entry.valid && entry.ppn >= 0 && coreMap.getOwner(entry.ppn) == owner && coreMap.getVPN(entry.ppn) == vpn;
+  }
+
+  /**
+   * Give a frame to a page that is being read ahead, but only if one is free
+   * and taking it leaves at least <tt>lowWatermark</tt> free, so that reading
+   * ahead never causes an eviction. The caller must hold <tt>vmLock</tt>.
+   *
+   * @param owner the process the page belongs to.
+   * @param vpn   the virtual page to give a frame to.
+   * @return the ppn of the frame, or -1 if none is spare.
+   */
+  static int allocateSpareFrame(PageOwner owner, int vpn) {
+    Lib.assertTrue(vmLock.isHeldByCurrentThread());
+
+    if (getNumFreePages() <= lowWatermark)
+      return -1;
+
+    int ppn = getFreePage();
+    coreMap.assign(ppn, owner, vpn);
+    policy.frameAssigned(ppn);
+    return ppn;
+  }
+
+  /**
+   * Return the shared image of the executable a process is loading, creating it
+   * if no other process is running the same file, and count the process as one
+   * of its users. The executable is identified by name and by its version, so
+   * that an image is never shared once the file has been written, truncated or
+   * removed. The caller must hold <tt>vmLock</tt>.
+   *
+   * @param coff the executable the process has loaded.
+   * @return the image, or <tt>null</tt> if sharing is disabled or the image
+   *         could not be created.
+   */
+  static ExecutableImage attachImage(Coff coff) {
+    Lib.assertTrue(vmLock.isHeldByCurrentThread());
+
+    if (!shareExecutables)
+      return null;
+
+    // a file that has changed gets a new image, and the old one is released
+    // once the processes already running it are done
+    String name = coff.getFile().getName();
+    String key = name + ":" + Coff.getVersion(name);
+
+    ExecutableImage image = images.get(key);
+    if (image == null) {
+      // the image needs its own handle, since it can outlive the process
+      OpenFile file = openExecutable(name);
+      if (file == null)
+        return null;
+
+      try {
+        image = new ExecutableImage(key, new Coff(file));
+      }
+      catch (EOFException e) {
+        file.close();
+        return null;
+      }
+
+      Lib.debug(dbgVM, "	new shared image of " + key);
+      images.put(key, image);
+    }
+
+    image.attach();
+    return image;
+  }
+
+  /**
+   * Undo one call to <tt>attachImage()</tt>. The image is released once no
+   * process is running it. The caller must hold <tt>vmLock</tt>.
+   *
+   * @param image the image.
+   */
+  static void detachImage(ExecutableImage image) {
+    Lib.assertTrue(vmLock.isHeldByCurrentThread());
+
+    // only the processes running an image pin its frames, so none are pinned
+    if (image.detach() == 0) {
+      images.remove(image.getKey());
+      image.release();
+    }
+  }
+
+  /**
+   * Wait until none of the frames of a process are pinned by the page cleaner,
+   * so that they can be freed. The caller must hold <tt>vmLock</tt>.
+   *
+   * @param owner the process.
+   */
+  static void waitForWrites(PageOwner owner) {
+    while (true) {
+      boolean pinned = false;
+      for (int ppn = 0; ppn < coreMap.getNumFrames(); ppn++) {
+        if (coreMap.getOwner(ppn) == owner && coreMap.isPinned(ppn))
+          pinned = true;
+      }
+
+      if (!pinned)
+        return;
+
+      writesDone.sleep();
+    }
+  }
+
+  /**
+   * Forget the owner of a frame that is about to be freed. The caller must hold
+   * <tt>vmLock</tt>.
+   *
+   * @param ppn the frame being freed.
+   */
+  static void releaseFrame(int ppn) {
+    Lib.assertTrue(vmLock.isHeldByCurrentThread());
+
+    invalidateTLB(ppn);
+    coreMap.clear(ppn);
+  }
+
+  /**
+   * Keep a frame from being evicted, e.g. while the kernel does I/O into it.
+   * Calls nest.
+   *
+   * @param ppn the frame to pin.
+   */
+  static void pinFrame(int ppn) {
+    coreMap.pin(ppn);
+  }
+
+  /**
+   * Undo one call to <tt>pinFrame()</tt>.
+   *
+   * @param ppn the frame to unpin.
+   */
+  static void unpinFrame(int ppn) {
+    coreMap.unpin(ppn);
+  }
+
+  /**
+   * Free up to <tt>swapCluster</tt> frames, as chosen by the replacement policy.
+   * Dirty victims are written to adjacent swap slots with a single request.
+   * Clean victims are dropped, since they can be read back from swap or from the
+   * executable, or are still all zeros.
+   *
+   * <p>
+   * In the background, <tt>vmLock</tt> is released while the write is in
+   * progress, so that faults on other pages can still be serviced. The dirty
+   * victims stay pinned and owned until it is done.
+   *
+   * @param background <tt>true</tt> if called by the page cleaner.
+   * @return the number of frames freed.
+   */
+  private static int evictFrames(boolean background) {
+    int[] victims = new int[swapCluster];
+    int[] dirty = new int[swapCluster];
+    int numVictims = 0, numDirty = 0;
+
+    while (numVictims + numDirty < swapCluster) {
+      int ppn = policy.findVictim();
+      if (ppn < 0)
+        break;
+
+      invalidateTLB(ppn);
+      TranslationEntry entry = coreMap.getEntry(ppn);
+      entry.valid = false;
+      if (entry.dirty)
+        dirty[numDirty++] = ppn;
+      else
+        victims[numVictims++] = ppn;
+    }
+
+    Machine.countEvictions(numVictims + numDirty);
+
+    // clean victims can go right away
+    for (int i = 0; i < numVictims; i++) {
+      int ppn = victims[i];
+      coreMap.getOwner(ppn).pageOut(coreMap.getVPN(ppn), -1);
+      coreMap.clear(ppn);
+    }
+    freePages(victims, numVictims);
+
+    if (numDirty > 0) {
+      int slot = writeFrames(dirty, numDirty, background);
+
+      for (int i = 0; i < numDirty; i++) {
+        int ppn = dirty[i];
+        coreMap.getOwner(ppn).pageOut(coreMap.getVPN(ppn), slot + i);
+        coreMap.clear(ppn);
+      }
+      freePages(dirty, numDirty);
+
+      writesDone.wakeAll();
+    }
+
+    return numVictims + numDirty;
+  }
+
+  /**
+   * Write back up to <tt>swapCluster</tt> dirty pages that are not pinned and
+   * have not been used since the policy last cleared their used bits, leaving
+   * them resident but clean. A page that is written again while this is in
+   * progress stays dirty, and keeps its old swap slot.
+   */
+  private static void launderFrames() {
+    int numFrames = coreMap.getNumFrames();
+    int[] frames = new int[swapCluster];
+    int count = 0;
+
+    for (int i = 0; i < numFrames && count < swapCluster; i++) {
+      int ppn = launderHand;
+      launderHand = (launderHand + 1) % numFrames;
+
+      if (!coreMap.isEvictable(ppn))
+        continue;
+
+      TranslationEntry entry = coreMap.getEntry(ppn);
+      if (entry.dirty && !entry.used) {
+        // any write from now on sets the dirty bit again
+        invalidateTLB(ppn);
+        entry.dirty = false;
+        frames[count++] = ppn;
+      }
+    }
+
+    if (count == 0)
+      return;
+
+    int slot = writeFrames(frames, count, true);
+
+    for (int i = 0; i < count; i++) {
+      int ppn = frames[i];
+      TranslationEntry entry = coreMap.getEntry(ppn);
+
+      if (entry.dirty)
+        swap.free(slot + i);
+      else
+        coreMap.getOwner(ppn).pageCleaned(coreMap.getVPN(ppn), slot + i);
+    }
+
+    writesDone.wakeAll();
+  }
+
+  /**
+   * Write frames to adjacent swap slots. The frames are pinned while this is in
+   * progress. The caller must hold <tt>vmLock</tt>.
+   *
+   * @param frames     the frames to write.
+   * @param count      the number of frames.
+   * @param background <tt>true</tt> to release <tt>vmLock</tt> during the write.
+   * @return the first slot written.
+   */
+  private static int writeFrames(int[] frames, int count, boolean background) {
+    int slot = swap.allocate(count);
+
+    for (int i = 0; i < count; i++)
+      coreMap.pin(frames[i]);
+    numWriting += count;
+
+    Lib.debug(dbgVM, "\twriting " + count + " pages to slot " + slot + (background ? " in the background" : ""));
+
+    if (background)
+      vmLock.release();
+    Lib.assertTrue(swap.write(slot, frames, count), "swap write failed");
+    if (background)
+      vmLock.acquire();
+
+    numWriting -= count;
+    for (int i = 0; i < count; i++)
+      coreMap.unpin(frames[i]);
+
+    return slot;
+  }
+
+  /**
+   * Copy the used and dirty bits the TLB holds for the current process into
+   * its page table.
+   */
+  private static void syncCurrentTLB() {
+    UserProcess current = currentProcess();
+    if (current != null)
+      ((VMProcess) current).syncTLB();
+  }
+
+  /**
+   * Invalidate any TLB entry that maps the specified frame, after copying its
+   * used and dirty bits into the page table of the process that owns it.
+   */
+  private static void invalidateTLB(int ppn) {
+    Processor processor = Machine.processor();
+    if (!processor.hasTLB())
+      return;
+
+    for (int i = 0; i < processor.getTLBSize(); i++) {
+      TranslationEntry tlbEntry = processor.readTLBEntry(i);
+      if (tlbEntry.valid && tlbEntry.ppn == ppn) {
+        TranslationEntry entry = coreMap.getEntry(ppn);
+        entry.used |= tlbEntry.used;
+        entry.dirty |= tlbEntry.dirty;
+
+        tlbEntry.valid = false;
+        processor.writeTLBEntry(i, tlbEntry);
+      }
+    }
+  }
+
+  /** The global swap area. */
+  public static SwapFile swap;
+  /** Held while paging, and while changing any page table or the core map. */
+  public static Lock vmLock;
+
+  /** The owner of every frame. */
+  private static CoreMap coreMap;
+  /** Chooses which frames to evict. */
+  private static ReplacementPolicy policy;
+  /** The most frames to free, and so to write to swap, at once. */
+  private static int swapCluster;
+  /** The page cleaner is woken when fewer frames than this are free. */
+  private static int lowWatermark;
+  /** The page cleaner frees frames until this many are free. */
+  private static int highWatermark;
+  /**
+   * The ticks between checks for idle paging, or 0 to launder only when free
+   * frames run low.
+   */
+  private static int launderInterval;
+  /** <tt>true</tt> if the page cleaner should launder even with frames free. */
+  private static boolean launderDue = false;
+  /** The number of frames given to faulting pages. */
+  private static int numFaults = 0;
+  /** <tt>numFaults</tt> when the launder timer last checked it. */
+  private static int idleFaults = 0;
+  /**
+   * Signalled when free frames drop below <tt>lowWatermark</tt>, or when
+   * paging has been idle.
+   */
+  private static Condition2 memoryLow;
+  /** Signalled whenever a write to swap completes. */
+  private static Condition2 writesDone;
+  /** <tt>true</tt> if processes running the same executable share pages. */
+  private static boolean shareExecutables;
+  /** The shared image of each executable being run, by name and version. */
+  private static HashMap<String, ExecutableImage> images = new HashMap<String, ExecutableImage>();
+  /** The number of frames being written to swap. */
+  private static int numWriting = 0;
+  /** The next frame the page cleaner will consider laundering. */
+  private static int launderHand = 0;
+
   // dummy variables to make javac smarter
   private static VMProcess dummy1 = null;
 
@@ -5,10 +5,15 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.util.Arrays;
+
 /**
- * A <tt>UserProcess</tt> that supports demand-paging.
+ * A <tt>UserProcess</tt> that supports demand-paging. Pages of the executable
+ * are shared with other processes running it, through an
+ * <tt>ExecutableImage</tt>, until this process writes them. Open files can be
+ * mapped above the executable's pages with <tt>mmap()</tt>.
  */
-public class VMProcess extends UserProcess {
+public class VMProcess extends UserProcess implements PageOwner {
   /**
    * Allocate a new process.
    */
@@ -22,6 +27,8 @@ public class VMProcess extends UserProcess {
    */
   public void saveState() {
     super.saveState();
+
+    syncTLB();
   }
 
   /**
@@ -29,24 +36,602 @@ public class VMProcess extends UserProcess {
    * <tt>UThread.restoreState()</tt>.
    */
   public void restoreState() {
-    super.restoreState();
+    Processor processor = Machine.processor();
+
+    if (!processor.hasTLB()) {
+      super.restoreState();
+      return;
+    }
+
+    // the TLB may hold another process's translations
+    TranslationEntry invalid = new TranslationEntry();
+    for (int i = 0; i < processor.getTLBSize(); i++)
+      processor.writeTLBEntry(i, invalid);
   }
 
   /**
    * Initializes page tables for this process so that the executable can be
-   * demand-paged.
+   * demand-paged. Every page starts out invalid, and is only given a frame when
+   * it is first touched. Pages of initialized sections map the entries of the
+   * shared image, and may already be resident.
    *
    * @return <tt>true</tt> if successful.
    */
   protected boolean loadSections() {
-    return super.loadSections();
+    VMKernel.vmLock.acquire();
+    image = VMKernel.attachImage(coff);
+    VMKernel.vmLock.release();
+
+    pageTable = new TranslationEntry[numPages];
+    shared = new boolean[numPages];
+    for (int vpn = 0; vpn < numPages; vpn++) {
+      if (image != null && image.isShared(vpn)) {
+        pageTable[vpn] = image.getEntry(vpn);
+        shared[vpn] = true;
+      }
+      else {
+        pageTable[vpn] = new TranslationEntry(vpn, -1, false, false, false, false);
+      }
+    }
+
+    swapSlots = new int[numPages];
+    Arrays.fill(swapSlots, -1);
+    prefetched = new boolean[numPages];
+
+    imagePages = numPages;
+    fileMaps = new FileMap[numPages];
+
+    pageSections = new CoffSection[numPages];
+    for (int s = 0; s < coff.getNumSections(); s++) {
+      CoffSection section = coff.getSection(s);
+
+      Lib.debug(dbgVM, "\tdeferring " + section.getName() + " section (" + section.getLength() + " pages)");
+
+      for (int i = 0; i < section.getLength(); i++)
+        pageSections[section.getFirstVPN() + i] = section;
+    }
+
+    return true;
   }
 
   /**
    * Release any resources allocated by <tt>loadSections()</tt>.
    */
   protected void unloadSections() {
+    VMKernel.vmLock.acquire();
+
+    VMKernel.waitForWrites(this);
+
+    for (int vpn = 0; vpn < numPages; vpn++) {
+      if (shared[vpn]) {
+        // the image's pages are not ours to free
+        pageTable[vpn] = new TranslationEntry(vpn, -1, false, false, false, false);
+        shared[vpn] = false;
+      }
+      if (pageTable[vpn].valid)
+        VMKernel.releaseFrame(pageTable[vpn].ppn);
+      if (swapSlots[vpn] >= 0) {
+        VMKernel.swap.free(swapSlots[vpn]);
+        swapSlots[vpn] = -1;
+      }
+    }
     super.unloadSections();
+
+    if (image != null)
+      VMKernel.detachImage(image);
+
+    VMKernel.vmLock.release();
+
+    coff.close();
+  }
+
+  protected void pinFrame(int ppn) {
+    VMKernel.pinFrame(ppn);
+  }
+
+  protected void unpinFrame(int ppn) {
+    VMKernel.unpinFrame(ppn);
+  }
+
+  /**
+   * Translate a virtual address for a kernel copy, first bringing the page in if
+   * it is not resident.
+   */
+  protected int translate(int vaddr, boolean writing) {
+    int vpn = Processor.pageFromAddress(vaddr);
+
+    if (pageTable != null && vpn < pageTable.length && !isUsed(vpn))
+      return -1;
+
+    if (writing && pageTable != null && vpn < pageTable.length && !breakSharing(vpn))
+      return -1;
+
+    // releasing the lock may let another process evict the page again, so
+    // only translate once it is seen resident with nothing in between
+    while (pageTable != null && vpn < pageTable.length && !pageTable[vpn].valid) {
+      VMKernel.vmLock.acquire();
+      boolean resident = pageTable[vpn].valid || faultIn(vpn);
+      VMKernel.vmLock.release();
+
+      if (!resident)
+        return -1;
+    }
+
+    if (pageTable != null && vpn < pageTable.length)
+      touched(vpn);
+
+    return super.translate(vaddr, writing);
+  }
+
+  /**
+   * Give a frame to a page that is not yet resident, filling it from swap if it
+   * was paged out dirty, from the executable if it belongs to a COFF section,
+   * or with zeros if it is a stack or argument page. The caller must hold
+   * <tt>VMKernel.vmLock</tt>.
+   *
+   * @param vpn the virtual page to bring in.
+   * @return <tt>true</tt> if the page is now resident.
+   */
+  protected boolean faultIn(int vpn) {
+    Lib.assertTrue(vpn >= 0 && vpn < numPages && isUsed(vpn) && !pageTable[vpn].valid);
+
+    if (shared[vpn]) {
+      if (!image.faultIn(vpn))
+        return false;
+
+      if (Machine.processor().hasTLB())
+        Machine.countPageFault();
+      return true;
+    }
+
+    VMKernel.waitForPageOut(this, vpn);
+
+    int ppn = VMKernel.allocateFrame(this, vpn);
+    if (ppn < 0) {
+      Lib.debug(dbgVM, "\tno frame to fault in vpn " + vpn);
+      return false;
+    }
+
+    // read ahead the pages that follow, as long as they come from the same
+    // place and there are spare frames for them
+    int window = updateReadahead(vpn);
+    int[] ppns = new int[1 + window];
+    ppns[0] = ppn;
+    int count = 1;
+    while (count < ppns.length && canReadAhead(vpn, count)) {
+      ppns[count] = VMKernel.allocateSpareFrame(this, vpn + count);
+      if (ppns[count] < 0)
+        break;
+      count++;
+    }
+
+    CoffSection section = pageSections[vpn];
+    boolean readOnly = false;
+
+    if (swapSlots[vpn] >= 0) {
+      Lib.debug(dbgVM, "\tswapping in " + count + " pages at vpn " + vpn + " from slot " + swapSlots[vpn]);
+      Lib.assertTrue(VMKernel.swap.read(swapSlots[vpn], ppns, count), "swap read failed");
+    }
+    else if (fileMaps[vpn] != null) {
+      Lib.debug(dbgVM, "\treading " + count + " mapped pages at vpn " + vpn);
+      fileMaps[vpn].readPages(vpn, ppns, count);
+    }
+    else if (section != null) {
+      Lib.debug(dbgVM, "\tloading " + count + " pages at vpn " + vpn + " from " + section.getName());
+      section.loadPages(vpn - section.getFirstVPN(), ppns, count);
+      readOnly = section.isReadOnly();
+    }
+    else {
+      Lib.debug(dbgVM, "\tzero-filling vpn " + vpn + " into ppn " + ppn);
+      byte[] memory = Machine.processor().getMemory();
+      Arrays.fill(memory, ppn * pageSize, (ppn + 1) * pageSize, (byte) 0);
+    }
+
+    for (int i = 0; i < count; i++) {
+      TranslationEntry entry = pageTable[vpn + i];
+      entry.ppn = ppns[i];
+      entry.readOnly = readOnly;
+      entry.used = false;
+      entry.dirty = false;
+      entry.valid = true;
+      prefetched[vpn + i] = (i > 0);
+    }
+    numFrames += count;
+    readaheadEnd = vpn + count;
+
+    if (Machine.processor().hasTLB())
+      Machine.countPageFault();
+    Machine.countPagesPrefetched(count - 1);
+
+    return true;
+  }
+
+  /**
+   * Adjust the read-ahead window for a fault on the specified page. A fault on
+   * the page just past the last one brought in means the process is scanning
+   * sequentially, and the window grows. Any other fault closes it.
+   *
+   * @param vpn the page that faulted.
+   * @return the number of pages to try to read ahead.
+   */
+  private int updateReadahead(int vpn) {
+    if (vpn == readaheadEnd)
+      readaheadWindow = Math.min(maxReadahead, Math.max(1, readaheadWindow * 2));
+    else
+      readaheadWindow = 0;
+
+    return readaheadWindow;
+  }
+
+  /**
+   * Test whether a page can be read ahead together with a faulting page: it
+   * must not be resident or on its way out, and it must come from the next
+   * swap slot or the same COFF section.
+   *
+   * @param vpn    the page that faulted.
+   * @param offset how far past <i>vpn</i> the page is.
+   * @return <tt>true</tt> if the page can be read in the same request.
+   */
+  private boolean canReadAhead(int vpn, int offset) {
+    int next = vpn + offset;
+
+    if (next >= numPages || shared[next] || pageTable[next].valid || VMKernel.isPageOutPending(this, next))
+      return false;
+
+    if (swapSlots[vpn] >= 0)
+      return swapSlots[next] == swapSlots[vpn] + offset;
+    else if (fileMaps[vpn] != null)
+      return fileMaps[next] == fileMaps[vpn] && swapSlots[next] < 0;
+    else
+      return pageSections[vpn] != null && pageSections[next] == pageSections[vpn] && swapSlots[next] < 0;
+  }
+
+  /**
+   * Test whether a page is part of this process's address space: a page of the
+   * executable, its stack or arguments, or a page of a mapped file.
+   */
+  private boolean isUsed(int vpn) {
+    return vpn < imagePages || fileMaps[vpn] != null;
+  }
+
+  /**
+   * Map an open file into this process at a page-aligned address above the
+   * executable's pages. The pages are read from the file as they are touched,
+   * and may be paged out to swap like any other.
+   */
+  protected int mapFile(int handle, OpenFile file, int vaddr) {
+    int length = file.length();
+    if (length < 0 || vaddr < 0 || Processor.offsetFromAddress(vaddr) != 0)
+      return -1;
+
+    int firstVPN = Processor.pageFromAddress(vaddr);
+    int count = Lib.divRoundUp(length, pageSize);
+    if (firstVPN < imagePages || firstVPN + count > maxVirtualPages)
+      return -1;
+
+    VMKernel.vmLock.acquire();
+
+    for (int vpn = firstVPN; vpn < firstVPN + count && vpn < numPages; vpn++) {
+      if (fileMaps[vpn] != null) {
+        VMKernel.vmLock.release();
+        return -1;
+      }
+    }
+
+    if (firstVPN + count > numPages)
+      growPageTable(firstVPN + count);
+
+    FileMap map = new FileMap(file, firstVPN, count, length);
+    for (int vpn = firstVPN; vpn < firstVPN + count; vpn++)
+      fileMaps[vpn] = map;
+    mappedFiles[handle] = map;
+
+    VMKernel.vmLock.release();
+
+    Lib.debug(dbgVM, "\tmapped " + count + " pages at vpn " + firstVPN);
+    return length;
+  }
+
+  /**
+   * Write back every page of a mapped file that has changed since it was read,
+   * whether resident or in swap, and free its frames and swap slots.
+   */
+  protected void unmapFile(int handle) {
+    FileMap map = mappedFiles[handle];
+    mappedFiles[handle] = null;
+    if (map == null)
+      return;
+
+    VMKernel.vmLock.acquire();
+
+    syncTLB();
+
+    // runs of changed resident pages are written with a single request; the
+    // lock is only released, and pages can move, between runs. Every page is
+    // looked at afresh, since the cleaner may have begun to page it out while
+    // an earlier one was faulted in, and it is only in swap once that is done
+    int[] ppns = new int[map.numPages];
+    int runVPN = map.firstVPN, runLength = 0;
+    for (int vpn = map.firstVPN; vpn < map.firstVPN + map.numPages; vpn++) {
+      if (VMKernel.isPageOutPending(this, vpn)) {
+        map.writePages(runVPN, ppns, runLength);
+        runLength = 0;
+
+        VMKernel.waitForPageOut(this, vpn);
+      }
+
+      if (!pageTable[vpn].valid && swapSlots[vpn] >= 0) {
+        map.writePages(runVPN, ppns, runLength);
+        runLength = 0;
+
+        if (!faultIn(vpn)) {
+          Lib.debug(dbgVM, "\tno frame to write back mapped vpn " + vpn);
+          continue;
+        }
+      }
+
+      TranslationEntry entry = pageTable[vpn];
+      if (entry.valid && (entry.dirty || swapSlots[vpn] >= 0)) {
+        if (runLength == 0)
+          runVPN = vpn;
+        ppns[runLength++] = entry.ppn;
+      }
+      else {
+        map.writePages(runVPN, ppns, runLength);
+        runLength = 0;
+      }
+    }
+    map.writePages(runVPN, ppns, runLength);
+
+    // every page has been written, so nothing is lost if more move now
+    VMKernel.waitForWrites(this);
+
+    int[] frames = new int[map.numPages];
+    int numFreed = 0;
+    for (int vpn = map.firstVPN; vpn < map.firstVPN + map.numPages; vpn++) {
+      TranslationEntry entry = pageTable[vpn];
+      if (entry.valid) {
+        VMKernel.releaseFrame(entry.ppn);
+        frames[numFreed++] = entry.ppn;
+      }
+      if (swapSlots[vpn] >= 0) {
+        VMKernel.swap.free(swapSlots[vpn]);
+        swapSlots[vpn] = -1;
+      }
+      pageTable[vpn] = new TranslationEntry(vpn, -1, false, false, false, false);
+      prefetched[vpn] = false;
+      fileMaps[vpn] = null;
+    }
+    VMKernel.freePages(frames, numFreed);
+    numFrames -= numFreed;
+
+    VMKernel.vmLock.release();
+  }
+
+  /**
+   * Extend the page table, and the per-page state kept with it, to cover the
+   * specified number of pages. The new pages are not part of the address space
+   * until a file is mapped there.
+   */
+  private void growPageTable(int newNumPages) {
+    pageTable = Arrays.copyOf(pageTable, newNumPages);
+    for (int vpn = numPages; vpn < newNumPages; vpn++)
+      pageTable[vpn] = new TranslationEntry(vpn, -1, false, false, false, false);
+
+    swapSlots = Arrays.copyOf(swapSlots, newNumPages);
+    Arrays.fill(swapSlots, numPages, newNumPages, -1);
+    prefetched = Arrays.copyOf(prefetched, newNumPages);
+    shared = Arrays.copyOf(shared, newNumPages);
+    pageSections = Arrays.copyOf(pageSections, newNumPages);
+    fileMaps = Arrays.copyOf(fileMaps, newNumPages);
+    numPages = newNumPages;
+
+    if (!Machine.processor().hasTLB())
+      Machine.processor().setPageTable(pageTable);
+  }
+
+  /**
+   * Give this process its own copy of a shared page it is about to write, if the
+   * page belongs to a writable section.
+   *
+   * @param vpn the virtual page.
+   * @return <tt>false</tt> if the page is shared and read-only, or there was no
+   *         frame for the copy.
+   */
+  private boolean breakSharing(int vpn) {
+    if (!shared[vpn])
+      return true;
+    if (!image.isCopyOnWrite(vpn))
+      return false;
+
+    VMKernel.vmLock.acquire();
+    boolean copied = !shared[vpn] || copyOnWrite(vpn);
+    VMKernel.vmLock.release();
+
+    return copied;
+  }
+
+  /**
+   * Replace the shared entry for a page with one of this process's own, copying
+   * the shared frame if it is resident or else loading the page from the
+   * executable. The caller must hold <tt>VMKernel.vmLock</tt>.
+   *
+   * @param vpn the virtual page.
+   * @return <tt>true</tt> if the page is now private.
+   */
+  private boolean copyOnWrite(int vpn) {
+    TranslationEntry sharedEntry = pageTable[vpn];
+
+    // keep the original from being evicted while we find a frame to copy it to
+    int sharedPPN = sharedEntry.valid ? sharedEntry.ppn : -1;
+    if (sharedPPN >= 0)
+      VMKernel.pinFrame(sharedPPN);
+
+    int ppn = VMKernel.allocateFrame(this, vpn);
+
+    if (ppn >= 0) {
+      byte[] memory = Machine.processor().getMemory();
+      if (sharedPPN >= 0) {
+        Lib.debug(dbgVM, "	copying shared vpn " + vpn + " into ppn " + ppn);
+        System.arraycopy(memory, sharedPPN * pageSize, memory, ppn * pageSize, pageSize);
+      }
+      else {
+        CoffSection section = pageSections[vpn];
+        Lib.debug(dbgVM, "	loading private vpn " + vpn + " from " + section.getName() + " into ppn " + ppn);
+        section.loadPage(vpn - section.getFirstVPN(), ppn);
+      }
+
+      invalidateTLB(vpn);
+      pageTable[vpn] = new TranslationEntry(vpn, ppn, true, false, false, false);
+      shared[vpn] = false;
+      numFrames++;
+
+      Machine.countCopyOnWrite();
+    }
+
+    if (sharedPPN >= 0)
+      VMKernel.unpinFrame(sharedPPN);
+
+    return ppn >= 0;
+  }
+
+  /**
+   * Invalidate any TLB entry for a page of this process.
+   */
+  private void invalidateTLB(int vpn) {
+    Processor processor = Machine.processor();
+    if (!processor.hasTLB())
+      return;
+
+    for (int i = 0; i < processor.getTLBSize(); i++) {
+      TranslationEntry tlbEntry = processor.readTLBEntry(i);
+      if (tlbEntry.valid && tlbEntry.vpn == vpn) {
+        syncTLBEntry(tlbEntry);
+        tlbEntry.valid = false;
+        processor.writeTLBEntry(i, tlbEntry);
+      }
+    }
+  }
+
+  /**
+   * Note that a page has been touched since it was brought in. If it was read
+   * ahead, the read-ahead paid off.
+   */
+  private void touched(int vpn) {
+    if (prefetched[vpn]) {
+      prefetched[vpn] = false;
+      Machine.countPrefetchHit();
+    }
+  }
+
+  public TranslationEntry getEntry(int vpn) {
+    return pageTable[vpn];
+  }
+
+  public long getWorkingSetWindow() {
+    return workingSetWindow;
+  }
+
+  public void pageOut(int vpn, int slot) {
+    // a page read ahead but never touched was wasted, so read less
+    if (prefetched[vpn]) {
+      prefetched[vpn] = false;
+      readaheadWindow /= 2;
+    }
+
+    if (slot >= 0) {
+      if (swapSlots[vpn] >= 0)
+        VMKernel.swap.free(swapSlots[vpn]);
+      swapSlots[vpn] = slot;
+    }
+
+    numFrames--;
+  }
+
+  public void pageCleaned(int vpn, int slot) {
+    if (swapSlots[vpn] >= 0)
+      VMKernel.swap.free(swapSlots[vpn]);
+    swapSlots[vpn] = slot;
+  }
+
+  /**
+   * Copy the used and dirty bits of every TLB entry back into the page table, so
+   * that the kernel sees what the hardware has recorded.
+   */
+  protected void syncTLB() {
+    Processor processor = Machine.processor();
+    if (!processor.hasTLB())
+      return;
+
+    // clear the bits in the TLB once copied, so that a replacement policy
+    // clearing them in the page table sees whether they get set again
+    for (int i = 0; i < processor.getTLBSize(); i++) {
+      TranslationEntry tlbEntry = processor.readTLBEntry(i);
+      if (syncTLBEntry(tlbEntry)) {
+        tlbEntry.used = false;
+        tlbEntry.dirty = false;
+        processor.writeTLBEntry(i, tlbEntry);
+      }
+    }
+  }
+
+  private boolean syncTLBEntry(TranslationEntry tlbEntry) {
+    if (!tlbEntry.valid || tlbEntry.vpn < 0 || tlbEntry.vpn >= numPages)
+      return false;
+    if (!tlbEntry.used && !tlbEntry.dirty)
+      return false;
+
+    TranslationEntry entry = pageTable[tlbEntry.vpn];
+    if (entry.valid && entry.ppn == tlbEntry.ppn) {
+      entry.used |= tlbEntry.used;
+      entry.dirty |= tlbEntry.dirty;
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Handle a TLB miss or page fault on the specified virtual address, bringing
+   * the page in if needed and, with a TLB, loading its translation.
+   *
+   * @param vaddr the virtual address that missed.
+   * @return <tt>true</tt> if the faulting instruction can be retried.
+   */
+  private boolean handleMiss(int vaddr) {
+    Processor processor = Machine.processor();
+    int vpn = Processor.pageFromAddress(vaddr);
+
+    if (vpn >= numPages || !isUsed(vpn)) {
+      Lib.debug(dbgVM, "\tbad address 0x" + Lib.toHexString(vaddr));
+      return false;
+    }
+
+    // the lock is only needed to bring the page in; refilling the TLB from a
+    // valid entry cannot block
+    if (!pageTable[vpn].valid) {
+      VMKernel.vmLock.acquire();
+      boolean resident = pageTable[vpn].valid || faultIn(vpn);
+      VMKernel.vmLock.release();
+
+      if (!resident)
+        return false;
+    }
+
+    touched(vpn);
+
+    if (!processor.hasTLB())
+      return true;
+
+    int number = processor.getTLBReplacement(vpn);
+    if (number < 0) {
+      int ways = processor.getTLBAssociativity();
+      number = processor.getTLBSet(vpn) * ways + (tlbVictim++ % ways);
+    }
+
+    syncTLBEntry(processor.readTLBEntry(number));
+    processor.writeTLBEntry(number, pageTable[vpn]);
+
+    return true;
   }
 
   /**
@@ -60,13 +645,125 @@ public class VMProcess extends UserProcess {
     Processor processor = Machine.processor();
 
     switch (cause) {
+    case Processor.exceptionTLBMiss:
+    case Processor.exceptionPageFault:
+      if (handleMiss(processor.readRegister(Processor.regBadVAddr)))
+        break;
+      super.handleException(cause);
+      break;
+
+    case Processor.exceptionReadOnly:
+      int vpn = Processor.pageFromAddress(processor.readRegister(Processor.regBadVAddr));
+      if (vpn < numPages && shared[vpn] && breakSharing(vpn))
+        break;
+      super.handleException(cause);
+      break;
+
     default:
       super.handleException(cause);
       break;
     }
   }
 
+  /** See <tt>getWorkingSetWindow()</tt>. */
+  private long workingSetWindow = Config.getInteger("VMKernel.workingSetWindow", 20000);
+  /** <tt>true</tt> for each page read ahead and not yet touched. */
+  private boolean[] prefetched;
+  /** The page just past the last ones brought in. */
+  private int readaheadEnd = -1;
+  /** The number of pages to read ahead on the next sequential fault. */
+  private int readaheadWindow = 0;
+  /** The most pages to read ahead at once. */
+  private int maxReadahead = Config.getInteger("VMKernel.maxReadahead", 8);
+  /** The shared pages of the executable, or <tt>null</tt> if not sharing. */
+  private ExecutableImage image;
+  /** <tt>true</tt> for each page whose entry belongs to <tt>image</tt>. */
+  private boolean[] shared;
+  /** The number of pages of the executable, its stack and arguments. */
+  private int imagePages;
+  /** The file each page is mapped from, or <tt>null</tt> if it is not mapped. */
+  private FileMap[] fileMaps;
+  /** The file mapped through each file descriptor, or <tt>null</tt>. */
+  private FileMap[] mappedFiles = new FileMap[MAXFD];
+  /** The page table may not grow past this many pages. */
+  private int maxVirtualPages = Config.getInteger("VMKernel.maxVirtualPages", 4096);
+  /** The swap slot holding each page, or -1 if it has none. */
+  private int[] swapSlots;
+  /** The COFF section each page is loaded from, or <tt>null</tt> to zero-fill. */
+  private CoffSection[] pageSections;
+
+  /** Round-robin victim for TLB refills when there is no replacement hint. */
+  private static int tlbVictim = 0;
+
   private static final int pageSize = Processor.pageSize;
   private static final char dbgProcess = 'a';
   private static final char dbgVM = 'v';
+
+  /**
+   * A file mapped into consecutive pages, starting at the beginning of the file.
+   * The last page is zero-filled past the end of the file, and only the part
+   * within the file is written back.
+   */
+  private static class FileMap {
+    FileMap(OpenFile file, int firstVPN, int numPages, int length) {
+      this.file = file;
+      this.firstVPN = firstVPN;
+      this.numPages = numPages;
+      this.length = length;
+    }
+
+    /** Read consecutive pages of the file into frames with a single request. */
+    void readPages(int vpn, int[] ppns, int count) {
+      byte[] memory = Machine.processor().getMemory();
+      int[] offsets = new int[count];
+      int[] lengths = new int[count];
+      int total = 0;
+      for (int i = 0; i < count; i++) {
+        offsets[i] = ppns[i] * pageSize;
+        lengths[i] = getPageLength(vpn + i);
+        total += lengths[i];
+        Arrays.fill(memory, offsets[i] + lengths[i], offsets[i] + pageSize, (byte) 0);
+      }
+
+      int amount = file.read(getPosition(vpn), memory, offsets, lengths, count);
+      if (amount < total) {
+        // the file has shrunk since it was mapped
+        int remaining = Math.max(0, amount);
+        for (int i = 0; i < count; i++) {
+          int got = Math.min(lengths[i], remaining);
+          Arrays.fill(memory, offsets[i] + got, offsets[i] + lengths[i], (byte) 0);
+          remaining -= got;
+        }
+      }
+    }
+
+    /** Write consecutive pages back to the file with a single request. */
+    void writePages(int vpn, int[] ppns, int count) {
+      if (count == 0)
+        return;
+
+      int[] offsets = new int[count];
+      int[] lengths = new int[count];
+      for (int i = 0; i < count; i++) {
+        offsets[i] = ppns[i] * pageSize;
+        lengths[i] = getPageLength(vpn + i);
+      }
+
+      Lib.debug(dbgVM, "\twriting back " + count + " mapped pages at vpn " + vpn);
+      file.write(getPosition(vpn), Machine.processor().getMemory(), offsets, lengths, count);
+    }
+
+    private int getPosition(int vpn) {
+      return (vpn - firstVPN) * pageSize;
+    }
+
+    private int getPageLength(int vpn) {
+      return Math.min(pageSize, length - getPosition(vpn));
+    }
+
+    OpenFile file;
+    int firstVPN;
+    int numPages;
+    int length;
+  }
 }
@@ -0,0 +1,67 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+/**
+ * WSClock replacement. Like the clock, a hand sweeps the frames, giving pages
+ * whose used bit is set a second chance and noting the time they were last
+ * seen in use. A page that has not been used within its process's working set
+ * window is outside the working set, and is evicted if it is clean. Dirty pages
+ * outside the working set are only evicted if no clean one is found, and
+ * failing that the page unused for longest goes.
+ */
+public class WSClockPolicy extends ReplacementPolicy {
+  /**
+   * Allocate a new WSClock policy.
+   */
+  public WSClockPolicy() {
+  }
+
+  public void initialize(CoreMap coreMap) {
+    super.initialize(coreMap);
+
+    lastUsed = new long[coreMap.getNumFrames()];
+  }
+
+  public void frameAssigned(int ppn) {
+    lastUsed[ppn] = Machine.timer().getTime();
+  }
+
+  public int findVictim() {
+    int numFrames = coreMap.getNumFrames();
+    long now = Machine.timer().getTime();
+    int dirtyVictim = -1;
+    int oldest = -1;
+
+    for (int i = 0; i < numFrames; i++) {
+      int ppn = hand;
+      hand = (hand + 1) % numFrames;
+
+      if (!coreMap.isEvictable(ppn))
+        continue;
+
+      TranslationEntry entry = coreMap.getEntry(ppn);
+      if (entry.used) {
+        entry.used = false;
+        lastUsed[ppn] = now;
+      }
+      else if (now - lastUsed[ppn] > coreMap.getOwner(ppn).getWorkingSetWindow()) {
+        if (!entry.dirty)
+          return ppn;
+        if (dirtyVictim == -1)
+          dirtyVictim = ppn;
+      }
+
+      if (oldest == -1 || lastUsed[ppn] < lastUsed[oldest])
+        oldest = ppn;
+    }
+
+    return (dirtyVictim != -1) ? dirtyVictim : oldest;
+  }
+
+  private long[] lastUsed;
+  private int hand = 0;
+}